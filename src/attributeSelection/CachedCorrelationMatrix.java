@@ -0,0 +1,209 @@
+package attributeSelection;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Correlation matrix for lazy evaluation that keeps at most a fixed number of
+ * attribute intercorrelations, so a search over very wide data runs in fixed
+ * memory. Correlations with the class are always kept.
+ * <p>
+ * The cache is split into independently locked segments, each segment into
+ * sets of WAYS entries. A pair can only live in one set, a full set evicts
+ * with the CLOCK (second chance) policy: entries read since the hand last
+ * passed them survive. An evicted pair reads as UNCOMPUTED again and is
+ * recomputed when needed.
+ *
+ * @author Suhel Hammoud (suhel.hammoud@gmail.com)
+ * @version $Revision: 00000 $
+ */
+class CachedCorrelationMatrix implements CorrelationMatrix {
+
+  /**
+   * for serialization
+   */
+  static final long serialVersionUID = -2794468103513742317L;
+
+  /**
+   * Bytes taken by a cached entry: key, value and reference bit
+   */
+  static final int ENTRY_BYTES = 8 + 4 + 1;
+
+  /**
+   * Entries per set
+   */
+  private static final int WAYS = 8;
+
+  /**
+   * Number of independently locked segments
+   */
+  private static final int NUM_SEGMENTS = 64;
+
+  private static final long EMPTY = -1L;
+
+  private final int m_classIndex;
+
+  /**
+   * Correlations with the class, by attribute
+   */
+  private final float[] m_classCorr;
+
+  private final Segment[] m_segments;
+
+  private final LongAdder m_hits = new LongAdder();
+  private final LongAdder m_misses = new LongAdder();
+
+  /**
+   * @param numAttribs  the number of attributes, including the class
+   * @param classIndex  the index of the class attribute
+   * @param budgetBytes the memory the cached intercorrelations may take
+   */
+  CachedCorrelationMatrix(int numAttribs, int classIndex, long budgetBytes) {
+    m_classIndex = classIndex;
+    m_classCorr = new float[numAttribs];
+    Arrays.fill(m_classCorr, UNCOMPUTED);
+
+    long sets = budgetBytes / ((long) ENTRY_BYTES * WAYS * NUM_SEGMENTS);
+    int setsPerSegment = (int) Math.max(1, Math.min(sets, 1 << 24));
+    m_segments = new Segment[NUM_SEGMENTS];
+    for (int s = 0; s < NUM_SEGMENTS; s++) {
+      m_segments[s] = new Segment(setsPerSegment);
+    }
+  }
+
+  private static long key(int row, int col) {
+    return (long) row * (row - 1) / 2 + col;
+  }
+
+  private static long hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return h ^ (h >>> 29);
+  }
+
+  private Segment segment(long hash) {
+    return m_segments[(int) (hash >>> 58) & (NUM_SEGMENTS - 1)];
+  }
+
+  @Override
+  public float get(int row, int col) {
+    if (row == m_classIndex) {
+      return m_classCorr[col];
+    }
+    if (col == m_classIndex) {
+      return m_classCorr[row];
+    }
+
+    long key = key(row, col);
+    long hash = hash(key);
+    float value = segment(hash).get(key, hash);
+    if (value == UNCOMPUTED) {
+      m_misses.increment();
+    } else {
+      m_hits.increment();
+    }
+    return value;
+  }
+
+  @Override
+  public void set(int row, int col, float value) {
+    if (row == m_classIndex) {
+      m_classCorr[col] = value;
+      return;
+    }
+    if (col == m_classIndex) {
+      m_classCorr[row] = value;
+      return;
+    }
+
+    long key = key(row, col);
+    long hash = hash(key);
+    segment(hash).put(key, hash, value);
+  }
+
+  /**
+   * @return the number of intercorrelations found in the cache
+   */
+  long getHits() {
+    return m_hits.sum();
+  }
+
+  /**
+   * @return the number of intercorrelations not found in the cache
+   */
+  long getMisses() {
+    return m_misses.sum();
+  }
+
+  /**
+   * @return the number of intercorrelations the cache can hold
+   */
+  long capacity() {
+    return (long) NUM_SEGMENTS * m_segments[0].m_keys.length;
+  }
+
+  @Override
+  public void flush() {
+  }
+
+  /**
+   * A segment of the cache, set-associative with a CLOCK hand per set
+   */
+  private static class Segment implements java.io.Serializable {
+
+    static final long serialVersionUID = 4630152948842703521L;
+
+    private final int m_numSets;
+    private final long[] m_keys;
+    private final float[] m_values;
+    private final boolean[] m_referenced;
+    private final byte[] m_hands;
+
+    Segment(int numSets) {
+      m_numSets = numSets;
+      m_keys = new long[numSets * WAYS];
+      Arrays.fill(m_keys, EMPTY);
+      m_values = new float[numSets * WAYS];
+      m_referenced = new boolean[numSets * WAYS];
+      m_hands = new byte[numSets];
+    }
+
+    private int set(long hash) {
+      return (int) ((hash & 0xFFFFFFFFL) % m_numSets);
+    }
+
+    synchronized float get(long key, long hash) {
+      int base = set(hash) * WAYS;
+      for (int i = base; i < base + WAYS; i++) {
+        if (m_keys[i] == key) {
+          m_referenced[i] = true;
+          return m_values[i];
+        }
+      }
+      return UNCOMPUTED;
+    }
+
+    synchronized void put(long key, long hash, float value) {
+      int set = set(hash);
+      int base = set * WAYS;
+      for (int i = base; i < base + WAYS; i++) {
+        if (m_keys[i] == key || m_keys[i] == EMPTY) {
+          m_keys[i] = key;
+          m_values[i] = value;
+          return;
+        }
+      }
+
+      // give every entry read since the last pass a second chance
+      int hand = m_hands[set];
+      while (m_referenced[base + hand]) {
+        m_referenced[base + hand] = false;
+        hand = (hand + 1) % WAYS;
+      }
+      // a new entry starts unreferenced, so pairs read only once are the
+      // first to go
+      m_keys[base + hand] = key;
+      m_values[base + hand] = value;
+      m_hands[set] = (byte) ((hand + 1) % WAYS);
+    }
+  }
+}
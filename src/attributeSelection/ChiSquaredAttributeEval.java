@@ -329,12 +329,57 @@ public class ChiSquaredAttributeEval extends ASEvaluation implements
       }
     }
 
+    computeChiSquareds(counts, data, classIndex, numClasses);
+  }
+
+  /**
+   * Initializes a chi-squared attribute evaluator from a columnar dataset,
+   * without building Instances. Numeric attributes are discretized (or
+   * binarized) on the columns unless the dataset was prepared already, as
+   * read from a ColumnarCache.
+   * 
+   * @param data the columnar dataset, with a nominal class set
+   * @throws Exception if the evaluator has not been generated successfully
+   */
+  public void buildEvaluator(ColumnarData data) throws Exception {
+
+    int classIndex = data.classIndex();
+    if (classIndex < 0 || !data.attribute(classIndex).isNominal()) {
+      throw new UnsupportedAttributeTypeException(
+        "ChiSquaredAttributeEval needs a nominal class");
+    }
+    data = data.prepare(m_Binarize);
+    int numClasses = data.attribute(classIndex).numValues();
+
+    double[][][] counts = new double[data.numAttributes()][][];
+    for (int k = 0; k < data.numAttributes(); k++) {
+      if (k != classIndex) {
+        counts[k] = data.contingencyTable(k);
+      }
+    }
+
+    computeChiSquareds(counts, data.header(), classIndex, numClasses);
+  }
+
+  /**
+   * Computes the chi-squared value of every attribute from its contingency
+   * table, distributing the counts of missing values first if required.
+   * 
+   * @param counts the contingency table of each attribute, with a last row
+   *          and column for missing values
+   * @param header the (nominal) attributes
+   * @param classIndex the index of the class
+   * @param numClasses the number of class values
+   */
+  private void computeChiSquareds(double[][][] counts, Instances header,
+    int classIndex, int numClasses) {
+
     // distribute missing counts if required
     if (m_missing_merge) {
 
-      for (int k = 0; k < data.numAttributes(); k++) {
+      for (int k = 0; k < header.numAttributes(); k++) {
         if (k != classIndex) {
-          int numValues = data.attribute(k).numValues();
+          int numValues = header.attribute(k).numValues();
 
           // Compute marginals
           double[] rowSums = new double[numValues];
@@ -388,8 +433,8 @@ public class ChiSquaredAttributeEval extends ASEvaluation implements
     }
 
     // Compute chi-squared values
-    m_ChiSquareds = new double[data.numAttributes()];
-    for (int i = 0; i < data.numAttributes(); i++) {
+    m_ChiSquareds = new double[header.numAttributes()];
+    for (int i = 0; i < header.numAttributes(); i++) {
       if (i != classIndex) {
         m_ChiSquareds[i] = ContingencyTables.chiVal(
           ContingencyTables.reduceMatrix(counts[i]), false);
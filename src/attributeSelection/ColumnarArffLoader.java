@@ -0,0 +1,632 @@
+package attributeSelection;
+
+import weka.core.Attribute;
+import weka.core.Instances;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Loads a dense ARFF file straight into ColumnarData, without an Instance
+ * object per row. The header is parsed by Weka; the @data section is memory
+ * mapped, split into chunks on line boundaries and the chunks parsed in
+ * parallel: a first pass counts the rows of every chunk, which gives each
+ * chunk its first row, a second one writes the values into the columns.
+ * Nominal values are looked up in a dictionary of the declared values by
+ * their bytes, numbers are parsed from the bytes as well, so the only
+ * objects created per row are for dates and for numbers too long to parse
+ * exactly by hand.
+ * <p>
+ * Sparse rows and string or relational attributes are not supported. Row
+ * weights ({w} after the values) are.
+ *
+ * @author Suhel Hammoud (suhel.hammoud@gmail.com)
+ * @version $Revision: 00000 $
+ * @see ColumnarData
+ */
+public class ColumnarArffLoader {
+
+  /**
+   * Smallest chunk worth a task of its own
+   */
+  static final int MIN_CHUNK_BYTES = 1 << 20;
+
+  /**
+   * Largest chunk, well below the 2GB limit of a mapping
+   */
+  static final int MAX_CHUNK_BYTES = 1 << 28;
+
+  /**
+   * Chunks per thread, to even out chunks of uneven cost
+   */
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+      1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+  private final File m_file;
+  private final int m_numThreads;
+
+  private Instances m_header;
+
+  /**
+   * Dictionary of each nominal attribute, null for the others
+   */
+  private NominalDictionary[] m_dictionaries;
+
+  private MappedByteBuffer[] m_chunks;
+
+  private ColumnarArffLoader(File file, int numThreads) {
+    m_file = file;
+    m_numThreads = Math.max(1, numThreads);
+  }
+
+  /**
+   * Loads an ARFF file using all available processors.
+   *
+   * @param file the ARFF file
+   * @return its columns, with no class set
+   * @throws IOException if the file cannot be read or parsed
+   */
+  public static ColumnarData load(File file) throws IOException {
+    return load(file, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Loads an ARFF file.
+   *
+   * @param file       the ARFF file
+   * @param numThreads the number of chunks parsed at a time
+   * @return its columns, with no class set
+   * @throws IOException if the file cannot be read or parsed
+   */
+  public static ColumnarData load(File file, int numThreads)
+      throws IOException {
+    return new ColumnarArffLoader(file, numThreads).load();
+  }
+
+  private ColumnarData load() throws IOException {
+    long dataStart = readHeader();
+    int numAttributes = m_header.numAttributes();
+    m_dictionaries = new NominalDictionary[numAttributes];
+    for (int k = 0; k < numAttributes; k++) {
+      Attribute att = m_header.attribute(k);
+      if (att.isNominal()) {
+        m_dictionaries[k] = new NominalDictionary(att);
+      } else if (!att.isNumeric()) {
+        throw new IOException("Unsupported attribute type: " + att.name());
+      }
+    }
+
+    try (FileChannel channel = FileChannel.open(m_file.toPath(),
+        StandardOpenOption.READ)) {
+      mapChunks(channel, dataStart);
+    }
+
+    // first pass: rows per chunk
+    int[] firstRow = new int[m_chunks.length + 1];
+    runChunks(c -> firstRow[c + 1] = countRows(m_chunks[c]));
+    long numRows = 0;
+    for (int c = 0; c < m_chunks.length; c++) {
+      numRows += firstRow[c + 1];
+      if (numRows > Integer.MAX_VALUE) {
+        throw new IOException("Too many rows: " + m_file);
+      }
+      firstRow[c + 1] = (int) numRows;
+    }
+    int numInstances = (int) numRows;
+
+    // second pass: values
+    int[][] codes = new int[numAttributes][];
+    double[][] values = new double[numAttributes][];
+    for (int k = 0; k < numAttributes; k++) {
+      if (m_dictionaries[k] != null) {
+        codes[k] = new int[numInstances];
+      } else {
+        values[k] = new double[numInstances];
+      }
+    }
+    double[] weights = new double[numInstances];
+    boolean[] weighted = new boolean[m_chunks.length];
+    runChunks(c -> weighted[c] = parseChunk(m_chunks[c], firstRow[c], codes,
+        values, weights));
+
+    boolean anyWeighted = false;
+    for (boolean w : weighted) {
+      anyWeighted |= w;
+    }
+    m_chunks = null;
+    return new ColumnarData(m_header, numInstances, codes, values,
+        anyWeighted ? weights : null);
+  }
+
+  /**
+   * Parses the header with Weka.
+   *
+   * @return the offset of the first byte after the @data line
+   */
+  private long readHeader() throws IOException {
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    long offset = 0;
+    try (InputStream in = new BufferedInputStream(
+        Files.newInputStream(m_file.toPath()), 1 << 16)) {
+      int b;
+      while (true) {
+        line.reset();
+        while ((b = in.read()) != -1) {
+          offset++;
+          if (b == '\n') {
+            break;
+          }
+          line.write(b);
+        }
+        String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        header.write(line.toByteArray());
+        header.write('\n');
+        if (text.trim().toLowerCase().startsWith(Instances.ARFF_DATA)) {
+          break;
+        }
+        if (b == -1) {
+          throw new IOException("No " + Instances.ARFF_DATA + " section: "
+              + m_file);
+        }
+      }
+    }
+    m_header = new Instances(new StringReader(
+        new String(header.toByteArray(), StandardCharsets.UTF_8)));
+    return offset;
+  }
+
+  /**
+   * Splits the data section into chunks ending on line boundaries and maps
+   * them.
+   */
+  private void mapChunks(FileChannel channel, long dataStart)
+      throws IOException {
+    long size = channel.size();
+    long dataBytes = Math.max(0, size - dataStart);
+    long numChunks = Math.min((dataBytes + MIN_CHUNK_BYTES - 1) / MIN_CHUNK_BYTES,
+        (long) m_numThreads * CHUNKS_PER_THREAD);
+    numChunks = Math.max(numChunks,
+        (dataBytes + MAX_CHUNK_BYTES - 1) / MAX_CHUNK_BYTES);
+    numChunks = Math.max(1, numChunks);
+
+    long[] bounds = new long[(int) numChunks + 1];
+    bounds[0] = dataStart;
+    for (int c = 1; c < numChunks; c++) {
+      long nominal = dataStart + dataBytes * c / numChunks;
+      bounds[c] = Math.max(bounds[c - 1], nextLineStart(channel, nominal, size));
+    }
+    bounds[(int) numChunks] = Math.max(dataStart, size);
+
+    m_chunks = new MappedByteBuffer[(int) numChunks];
+    for (int c = 0; c < numChunks; c++) {
+      long length = bounds[c + 1] - bounds[c];
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("Line too long in " + m_file);
+      }
+      m_chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, bounds[c],
+          length);
+    }
+  }
+
+  /**
+   * @return the offset of the first line starting at or after position
+   */
+  private static long nextLineStart(FileChannel channel, long position,
+                                    long size) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+    long pos = position - 1;
+    while (pos < size) {
+      buffer.clear();
+      int n = channel.read(buffer, pos);
+      if (n <= 0) {
+        break;
+      }
+      for (int i = 0; i < n; i++) {
+        if (buffer.get(i) == '\n') {
+          return pos + i + 1;
+        }
+      }
+      pos += n;
+    }
+    return size;
+  }
+
+  /**
+   * Runs a task for every chunk, in parallel if more than one thread is
+   * allowed.
+   */
+  private void runChunks(IntConsumer task) throws IOException {
+    try {
+      if (m_numThreads == 1 || m_chunks.length == 1) {
+        for (int c = 0; c < m_chunks.length; c++) {
+          task.accept(c);
+        }
+      } else {
+        VaCfsEval.sharedPool(m_numThreads).submit(() ->
+            IntStream.range(0, m_chunks.length).parallel().forEach(task)).get();
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+  }
+
+  private static boolean isBlank(byte b) {
+    return b == ' ' || b == '\t' || b == '\r';
+  }
+
+  /**
+   * @return the offset of the first non blank byte of the line at pos
+   */
+  private static int skipBlanks(ByteBuffer chunk, int pos, int limit) {
+    while (pos < limit && isBlank(chunk.get(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+
+  private static int lineEnd(ByteBuffer chunk, int pos, int limit) {
+    while (pos < limit && chunk.get(pos) != '\n') {
+      pos++;
+    }
+    return pos;
+  }
+
+  /**
+   * @return whether the line starting at pos holds a row, that is whether
+   * it is neither blank nor a comment
+   */
+  private static boolean isRow(ByteBuffer chunk, int pos, int end) {
+    pos = skipBlanks(chunk, pos, end);
+    return pos < end && chunk.get(pos) != '%';
+  }
+
+  private static int countRows(ByteBuffer chunk) {
+    int limit = chunk.limit();
+    int rows = 0;
+    int pos = 0;
+    while (pos < limit) {
+      int end = lineEnd(chunk, pos, limit);
+      if (isRow(chunk, pos, end)) {
+        rows++;
+      }
+      pos = end + 1;
+    }
+    return rows;
+  }
+
+  /**
+   * Parses the rows of a chunk into the columns.
+   *
+   * @return whether any row of the chunk has a weight
+   */
+  private boolean parseChunk(ByteBuffer chunk, int firstRow, int[][] codes,
+                             double[][] values, double[] weights) {
+    Token token = new Token();
+    int numAttributes = codes.length;
+    int limit = chunk.limit();
+    int row = firstRow;
+    boolean weighted = false;
+    int pos = 0;
+    while (pos < limit) {
+      int end = lineEnd(chunk, pos, limit);
+      if (isRow(chunk, pos, end)) {
+        int p = skipBlanks(chunk, pos, end);
+        if (chunk.get(p) == '{') {
+          throw error("Sparse rows are not supported", row);
+        }
+        for (int k = 0; k < numAttributes; k++) {
+          p = skipSeparators(chunk, p, end);
+          if (p >= end || chunk.get(p) == '%') {
+            throw error("Premature end of line", row);
+          }
+          p = token.read(chunk, p, end, row);
+          if (codes[k] != null) {
+            codes[k][row] = token.m_missing ? ColumnarData.MISSING
+                : m_dictionaries[k].code(token, row);
+          } else {
+            values[k][row] = token.m_missing ? Double.NaN
+                : number(token, m_header.attribute(k), row);
+          }
+        }
+        weights[row] = 1.0;
+        p = skipSeparators(chunk, p, end);
+        if (p < end && chunk.get(p) == '{') {
+          int close = p + 1;
+          while (close < end && chunk.get(close) != '}') {
+            close++;
+          }
+          if (close >= end) {
+            throw error("Unterminated weight", row);
+          }
+          token.set(chunk, p + 1, close);
+          weights[row] = token.parseDouble(row);
+          weighted = true;
+          p = skipBlanks(chunk, close + 1, end);
+        }
+        if (p < end && chunk.get(p) != '%') {
+          throw error("Too many values", row);
+        }
+        row++;
+      }
+      pos = end + 1;
+    }
+    return weighted;
+  }
+
+  private static int skipSeparators(ByteBuffer chunk, int pos, int limit) {
+    while (pos < limit && (isBlank(chunk.get(pos)) || chunk.get(pos) == ',')) {
+      pos++;
+    }
+    return pos;
+  }
+
+  private double number(Token token, Attribute att, int row) {
+    if (att.isDate()) {
+      try {
+        return att.parseDate(token.toString());
+      } catch (ParseException e) {
+        throw error("Unparseable date " + token, row);
+      }
+    }
+    return token.parseDouble(row);
+  }
+
+  private UncheckedIOException error(String message, int row) {
+    return new UncheckedIOException(new IOException(message + ", row "
+        + (row + 1) + " of " + m_file));
+  }
+
+  /**
+   * The bytes of one value, unquoted, in a buffer reused from value to value
+   */
+  private class Token {
+
+    private byte[] m_bytes = new byte[64];
+    private int m_length;
+    private boolean m_missing;
+
+    /**
+     * Reads the value at pos.
+     *
+     * @return the offset after the value
+     */
+    int read(ByteBuffer chunk, int pos, int end, int row) {
+      m_length = 0;
+      byte first = chunk.get(pos);
+      if (first == '\'' || first == '"') {
+        pos++;
+        while (true) {
+          if (pos >= end) {
+            throw error("Unterminated quote", row);
+          }
+          byte b = chunk.get(pos++);
+          if (b == first) {
+            break;
+          }
+          if (b == '\\' && pos < end) {
+            b = unescape(chunk.get(pos++));
+          }
+          append(b);
+        }
+        m_missing = false;
+        return pos;
+      }
+      while (pos < end) {
+        byte b = chunk.get(pos);
+        if (b == ',' || isBlank(b) || b == '%' || b == '{') {
+          break;
+        }
+        append(b);
+        pos++;
+      }
+      m_missing = m_length == 1 && m_bytes[0] == '?';
+      return pos;
+    }
+
+    void set(ByteBuffer chunk, int from, int to) {
+      m_length = 0;
+      for (int i = from; i < to; i++) {
+        append(chunk.get(i));
+      }
+      m_missing = false;
+    }
+
+    private void append(byte b) {
+      if (m_length == m_bytes.length) {
+        m_bytes = Arrays.copyOf(m_bytes, 2 * m_length);
+      }
+      m_bytes[m_length++] = b;
+    }
+
+    /**
+     * Parses the value as a number, exactly: by hand when the digits and the
+     * exponent are small enough for a single correctly rounded operation on
+     * exact doubles, by Double.parseDouble otherwise.
+     */
+    double parseDouble(int row) {
+      int i = 0;
+      boolean negative = false;
+      if (i < m_length && (m_bytes[i] == '-' || m_bytes[i] == '+')) {
+        negative = m_bytes[i] == '-';
+        i++;
+      }
+      long mantissa = 0;
+      int digits = 0;
+      int exponent = 0;
+      boolean any = false;
+      for (; i < m_length && m_bytes[i] >= '0' && m_bytes[i] <= '9'; i++) {
+        any = true;
+        if (mantissa != 0 || m_bytes[i] != '0') {
+          mantissa = mantissa * 10 + (m_bytes[i] - '0');
+          digits++;
+        }
+        if (digits > 15) {
+          return slowParse(row);
+        }
+      }
+      if (i < m_length && m_bytes[i] == '.') {
+        for (i++; i < m_length && m_bytes[i] >= '0' && m_bytes[i] <= '9'; i++) {
+          any = true;
+          if (mantissa != 0 || m_bytes[i] != '0') {
+            mantissa = mantissa * 10 + (m_bytes[i] - '0');
+            digits++;
+          }
+          exponent--;
+          if (digits > 15) {
+            return slowParse(row);
+          }
+        }
+      }
+      if (!any) {
+        return slowParse(row);
+      }
+      if (i < m_length && (m_bytes[i] == 'e' || m_bytes[i] == 'E')) {
+        i++;
+        boolean negativeExp = false;
+        if (i < m_length && (m_bytes[i] == '-' || m_bytes[i] == '+')) {
+          negativeExp = m_bytes[i] == '-';
+          i++;
+        }
+        int exp = 0;
+        int expDigits = 0;
+        for (; i < m_length && m_bytes[i] >= '0' && m_bytes[i] <= '9'; i++) {
+          exp = exp * 10 + (m_bytes[i] - '0');
+          if (++expDigits > 4) {
+            return slowParse(row);
+          }
+        }
+        if (expDigits == 0) {
+          return slowParse(row);
+        }
+        exponent += negativeExp ? -exp : exp;
+      }
+      if (i != m_length) {
+        return slowParse(row);
+      }
+      double value;
+      if (mantissa == 0) {
+        value = 0.0;
+      } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+        value = mantissa * POWERS_OF_TEN[exponent];
+      } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+        value = mantissa / POWERS_OF_TEN[-exponent];
+      } else {
+        return slowParse(row);
+      }
+      return negative ? -value : value;
+    }
+
+    private double slowParse(int row) {
+      try {
+        return Double.parseDouble(toString());
+      } catch (NumberFormatException e) {
+        throw error("Number expected, read " + this, row);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return new String(m_bytes, 0, m_length, StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Escapes understood in quoted values, as Utils.unbackQuoteChars
+   */
+  private static byte unescape(byte b) {
+    switch (b) {
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      default:
+        return b;
+    }
+  }
+
+  /**
+   * Open addressing table from the UTF-8 bytes of the declared values of a
+   * nominal attribute to their index. Read only once built.
+   */
+  private class NominalDictionary {
+
+    private final byte[][] m_keys;
+    private final int[] m_codes;
+    private final int m_mask;
+
+    NominalDictionary(Attribute att) {
+      int capacity = Integer.highestOneBit(Math.max(2, att.numValues()) * 2) * 2;
+      m_keys = new byte[capacity][];
+      m_codes = new int[capacity];
+      m_mask = capacity - 1;
+      for (int v = 0; v < att.numValues(); v++) {
+        byte[] key = att.value(v).getBytes(StandardCharsets.UTF_8);
+        int slot = hash(key, key.length) & m_mask;
+        while (m_keys[slot] != null) {
+          slot = (slot + 1) & m_mask;
+        }
+        m_keys[slot] = key;
+        m_codes[slot] = v;
+      }
+    }
+
+    private int hash(byte[] bytes, int length) {
+      int h = 0x811C9DC5;
+      for (int i = 0; i < length; i++) {
+        h = (h ^ bytes[i]) * 0x01000193;
+      }
+      return h ^ (h >>> 16);
+    }
+
+    int code(Token token, int row) {
+      int slot = hash(token.m_bytes, token.m_length) & m_mask;
+      while (m_keys[slot] != null) {
+        byte[] key = m_keys[slot];
+        if (key.length == token.m_length && equals(key, token.m_bytes)) {
+          return m_codes[slot];
+        }
+        slot = (slot + 1) & m_mask;
+      }
+      throw error("Nominal value not declared in header: " + token, row);
+    }
+
+    private boolean equals(byte[] key, byte[] bytes) {
+      for (int i = 0; i < key.length; i++) {
+        if (key[i] != bytes[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,519 @@
+package attributeSelection;
+
+import weka.core.Attribute;
+import weka.core.Instances;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary on-disk form of a ColumnarData, typically one prepared for the
+ * evaluators (discretized or binarized), so that later runs on the same data
+ * neither parse ARFF text nor discretize again. The file holds the header
+ * (with the dictionary of every nominal attribute), the cut points of the
+ * discretized attributes, every column and the row weights.
+ * <p>
+ * The file starts with a HEADER_BYTES header:
+ * <pre>
+ *  0 magic            8 version          12 preparation
+ * 16 numInstances    20 numAttributes    24 classIndex
+ * 32 offset of the ARFF header text      40 its length in bytes
+ * 48 offset of the cut points            56 offset of the column table
+ * 64 offset of the weights, 0 if all are 1
+ * 72 size of the source ARFF file, -1 if unknown
+ * 80 last modification time of the source
+ * 88 offset of the canonical path of the source   96 its length in bytes
+ * </pre>
+ * The cut points are a count per attribute (-1 for none) followed by that
+ * many doubles. The column table holds the offset of every column. A
+ * nominal column is stored as one code per row, in 1, 2 or 4 bytes as the
+ * number of values requires, -1 for missing; a numeric column as doubles.
+ * Sections start on 8 byte boundaries; all numbers are little endian.
+ * <p>
+ * The source fields tie a cache to the ARFF file it was written from:
+ * loadPrepared only reuses a cache whose source has the same path, size and
+ * modification time as the file asked for.
+ * <p>
+ * Reading maps the file and bulk copies each column out of the mapping into
+ * the arrays of a ColumnarData, the cost of a memory copy per column.
+ *
+ * @author Suhel Hammoud (suhel.hammoud@gmail.com)
+ * @version $Revision: 00000 $
+ * @see ColumnarData
+ */
+public class ColumnarCache {
+
+  /**
+   * Identifies a columnar cache file
+   */
+  static final long MAGIC = 0x314C4F4343324C4CL; // "LL2CCOL1"
+
+  /**
+   * Layout version of the file
+   */
+  static final int VERSION = 2;
+
+  /**
+   * Size of the header in bytes
+   */
+  static final int HEADER_BYTES = 128;
+
+  /**
+   * Largest part of a column mapped at a time
+   */
+  private static final int MAX_MAP_BYTES = 1 << 30;
+
+  private ColumnarCache() {
+  }
+
+  /**
+   * @param att a nominal attribute
+   * @return the number of bytes of a code of the attribute
+   */
+  static int codeBytes(Attribute att) {
+    int numValues = att.numValues();
+    if (numValues <= Byte.MAX_VALUE) {
+      return 1;
+    }
+    return numValues <= Short.MAX_VALUE ? 2 : 4;
+  }
+
+  /**
+   * Returns the dataset of an ARFF file prepared for the evaluators, from the
+   * cache file if it was written from this ARFF file, unchanged since, and
+   * prepared the same way, otherwise loading and preparing the ARFF file and
+   * writing the cache. A cache file that cannot be read (empty, of another
+   * version or corrupt) is rebuilt the same way.
+   *
+   * @param arff       the ARFF file
+   * @param cache      the cache file
+   * @param classIndex the index of the class, -1 for the last attribute
+   * @param binarize   true to binarize numeric attributes instead of
+   *                   discretizing them
+   * @return the prepared dataset
+   * @throws IOException if a file cannot be read or written
+   */
+  public static ColumnarData loadPrepared(File arff, File cache, int classIndex,
+                                          boolean binarize) throws IOException {
+    ColumnarData.Preparation wanted = binarize
+        ? ColumnarData.Preparation.BINARIZED
+        : ColumnarData.Preparation.DISCRETIZED;
+    if (cache.isFile()) {
+      ColumnarData data = null;
+      try {
+        data = read(cache, arff);
+      } catch (IOException e) {
+        // rebuilt below
+      }
+      if (data != null && data.preparation() == wanted
+          && (classIndex < 0 ? data.numAttributes() - 1 : classIndex)
+          == data.classIndex()) {
+        return data;
+      }
+    }
+    ColumnarData data = ColumnarArffLoader.load(arff);
+    data.setClassIndex(classIndex < 0 ? data.numAttributes() - 1 : classIndex);
+    data = data.prepare(binarize);
+    write(data, cache, arff);
+    return data;
+  }
+
+  /**
+   * Writes a dataset to a cache file, replacing the file. The data goes to a
+   * temporary file in the same directory first, moved over the cache file
+   * once complete, so that readers never see a partly written cache.
+   *
+   * @param data the dataset
+   * @param file the cache file
+   * @throws IOException if the file cannot be written
+   */
+  public static void write(ColumnarData data, File file) throws IOException {
+    write(data, file, null);
+  }
+
+  /**
+   * Writes a dataset to a cache file, replacing the file, and records the
+   * ARFF file it was loaded from.
+   *
+   * @param data   the dataset
+   * @param file   the cache file
+   * @param source the ARFF file the dataset comes from, null if none
+   * @throws IOException if the file cannot be written
+   */
+  public static void write(ColumnarData data, File file, File source)
+      throws IOException {
+    byte[] header = new Instances(data.header(), 0).toString()
+        .getBytes(StandardCharsets.UTF_8);
+    byte[] sourcePath = source == null ? new byte[0]
+        : source.getCanonicalPath().getBytes(StandardCharsets.UTF_8);
+    long sourceSize = source == null ? -1 : source.length();
+    long sourceModified = source == null ? 0 : source.lastModified();
+
+    File temp = File.createTempFile(file.getName(), ".tmp",
+        file.getAbsoluteFile().getParentFile());
+    try {
+      write(data, header, sourcePath, sourceSize, sourceModified, temp);
+      Files.move(temp.toPath(), file.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp.toPath());
+    }
+  }
+
+  private static void write(ColumnarData data, byte[] header,
+                            byte[] sourcePath, long sourceSize,
+                            long sourceModified, File file)
+      throws IOException {
+    int numAttributes = data.numAttributes();
+    int numInstances = data.numInstances();
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      Writer out = new Writer(channel, HEADER_BYTES);
+
+      long headerOffset = out.position();
+      out.putBytes(header);
+      long sourcePathOffset = out.position();
+      out.putBytes(sourcePath);
+
+      out.align();
+      long cutPointsOffset = out.position();
+      for (int k = 0; k < numAttributes; k++) {
+        double[] cutPoints = data.cutPoints(k);
+        out.putLong(cutPoints == null ? -1 : cutPoints.length);
+        if (cutPoints != null) {
+          for (double cutPoint : cutPoints) {
+            out.putDouble(cutPoint);
+          }
+        }
+      }
+
+      long[] columnOffsets = new long[numAttributes];
+      for (int k = 0; k < numAttributes; k++) {
+        out.align();
+        columnOffsets[k] = out.position();
+        if (data.attribute(k).isNominal()) {
+          int bytes = codeBytes(data.attribute(k));
+          for (int code : data.codes(k)) {
+            if (bytes == 1) {
+              out.putByte((byte) code);
+            } else if (bytes == 2) {
+              out.putShort((short) code);
+            } else {
+              out.putInt(code);
+            }
+          }
+        } else {
+          for (double value : data.values(k)) {
+            out.putDouble(value);
+          }
+        }
+      }
+
+      out.align();
+      long columnTableOffset = out.position();
+      for (long offset : columnOffsets) {
+        out.putLong(offset);
+      }
+
+      long weightsOffset = 0;
+      if (data.weights() != null) {
+        weightsOffset = out.position();
+        for (double weight : data.weights()) {
+          out.putDouble(weight);
+        }
+      }
+      out.flush();
+
+      ByteBuffer head = ByteBuffer.allocate(HEADER_BYTES)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      head.putLong(0, MAGIC);
+      head.putInt(8, VERSION);
+      head.putInt(12, data.preparation().ordinal());
+      head.putInt(16, numInstances);
+      head.putInt(20, numAttributes);
+      head.putInt(24, data.classIndex());
+      head.putLong(32, headerOffset);
+      head.putLong(40, header.length);
+      head.putLong(48, cutPointsOffset);
+      head.putLong(56, columnTableOffset);
+      head.putLong(64, weightsOffset);
+      head.putLong(72, sourceSize);
+      head.putLong(80, sourceModified);
+      head.putLong(88, sourcePathOffset);
+      head.putLong(96, sourcePath.length);
+      channel.write(head, 0);
+    }
+  }
+
+  /**
+   * Reads a dataset from a cache file.
+   *
+   * @param file the cache file
+   * @return the dataset
+   * @throws IOException if the file cannot be read or is not a cache file
+   */
+  public static ColumnarData read(File file) throws IOException {
+    return read(file, null);
+  }
+
+  /**
+   * Reads a dataset from a cache file written from the given ARFF file.
+   *
+   * @param file   the cache file
+   * @param source the ARFF file, null to accept a cache of any source
+   * @return the dataset
+   * @throws IOException if the file cannot be read, is not a cache file, or
+   *                     was not written from source as it is now
+   */
+  public static ColumnarData read(File file, File source) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ)) {
+      return read(channel, file, source);
+    } catch (RuntimeException e) {
+      // whatever the validation below missed
+      throw new IOException("Corrupt columnar cache file: " + file, e);
+    }
+  }
+
+  private static ColumnarData read(FileChannel channel, File file,
+                                   File source) throws IOException {
+    long size = channel.size();
+    if (size < HEADER_BYTES) {
+      throw new IOException("Not a columnar cache file: " + file);
+    }
+    ByteBuffer head = map(channel, 0, HEADER_BYTES);
+    if (head.getLong(0) != MAGIC || head.getInt(8) != VERSION) {
+      throw new IOException("Not a columnar cache file, or of another "
+          + "version: " + file);
+    }
+    int numInstances = head.getInt(16);
+    int numAttributes = head.getInt(20);
+    int classIndex = head.getInt(24);
+    int ordinal = head.getInt(12);
+    if (ordinal < 0 || ordinal >= ColumnarData.Preparation.values().length
+        || numInstances < 0 || numAttributes <= 0
+        || classIndex < -1 || classIndex >= numAttributes
+        || !inFile(head.getLong(32), head.getLong(40), size)
+        || !inFile(head.getLong(88), head.getLong(96), size)
+        || !inFile(head.getLong(56), 8L * numAttributes, size)
+        || head.getLong(48) < HEADER_BYTES
+        || (head.getLong(64) != 0
+        && !inFile(head.getLong(64), 8L * numInstances, size))) {
+      throw new IOException("Corrupt columnar cache file: " + file);
+    }
+
+    if (source != null) {
+      byte[] sourcePath = new byte[(int) head.getLong(96)];
+      map(channel, head.getLong(88), sourcePath.length).get(sourcePath);
+      if (head.getLong(72) != source.length()
+          || head.getLong(80) != source.lastModified()
+          || !new String(sourcePath, StandardCharsets.UTF_8)
+          .equals(source.getCanonicalPath())) {
+        throw new IOException("Columnar cache file " + file
+            + " was not written from " + source + " as it is now");
+      }
+    }
+
+    ColumnarData.Preparation preparation =
+        ColumnarData.Preparation.values()[ordinal];
+
+    byte[] headerBytes = new byte[(int) head.getLong(40)];
+    map(channel, head.getLong(32), headerBytes.length).get(headerBytes);
+    Instances header = new Instances(new StringReader(
+        new String(headerBytes, StandardCharsets.UTF_8)));
+    if (header.numAttributes() != numAttributes) {
+      throw new IOException("Corrupt columnar cache file: " + file);
+    }
+    header.setClassIndex(classIndex);
+
+    // the cut points run up to the column table, padding included
+    long cutPointsBytes = head.getLong(56) - head.getLong(48);
+    if (cutPointsBytes < 8L * numAttributes
+        || cutPointsBytes > Integer.MAX_VALUE) {
+      throw new IOException("Corrupt columnar cache file: " + file);
+    }
+    ByteBuffer cutPointsSection = map(channel, head.getLong(48),
+        cutPointsBytes);
+    double[][] cutPoints = new double[numAttributes][];
+    for (int k = 0; k < numAttributes; k++) {
+      if (cutPointsSection.remaining() < 8) {
+        throw new IOException("Corrupt columnar cache file: " + file);
+      }
+      long count = cutPointsSection.getLong();
+      if (count >= 0) {
+        if (count > cutPointsSection.remaining() / 8) {
+          throw new IOException("Corrupt columnar cache file: " + file);
+        }
+        cutPoints[k] = new double[(int) count];
+        cutPointsSection.asDoubleBuffer().get(cutPoints[k]);
+        cutPointsSection.position(
+            cutPointsSection.position() + 8 * (int) count);
+      }
+    }
+
+    ByteBuffer columnTable = map(channel, head.getLong(56),
+        8 * numAttributes);
+    int[][] codes = new int[numAttributes][];
+    double[][] values = new double[numAttributes][];
+    for (int k = 0; k < numAttributes; k++) {
+      long offset = columnTable.getLong(8 * k);
+      Attribute att = header.attribute(k);
+      int bytes = att.isNominal() ? codeBytes(att) : 8;
+      if (offset < HEADER_BYTES
+          || !inFile(offset, (long) bytes * numInstances, size)) {
+        throw new IOException("Corrupt columnar cache file: " + file);
+      }
+      if (att.isNominal()) {
+        codes[k] = readCodes(channel, offset, numInstances, bytes);
+      } else {
+        values[k] = readDoubles(channel, offset, numInstances);
+      }
+    }
+
+    long weightsOffset = head.getLong(64);
+    double[] weights = weightsOffset == 0 ? null
+        : readDoubles(channel, weightsOffset, numInstances);
+
+    return new ColumnarData(header, numInstances, codes, values, weights,
+        preparation, cutPoints);
+  }
+
+  /**
+   * @return whether the bytes [offset, offset + length) lie within a file of
+   * the given size
+   */
+  private static boolean inFile(long offset, long length, long size) {
+    return offset >= 0 && length >= 0 && length <= Integer.MAX_VALUE
+        && offset <= size - length;
+  }
+
+  private static MappedByteBuffer map(FileChannel channel, long position,
+                                      long size) throws IOException {
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+        position, size);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    return buffer;
+  }
+
+  private static int[] readCodes(FileChannel channel, long offset, int n,
+                                 int bytes) throws IOException {
+    int[] codes = new int[n];
+    int perMap = MAX_MAP_BYTES / bytes;
+    byte[] narrow = bytes == 1 ? new byte[Math.min(n, perMap)] : null;
+    short[] medium = bytes == 2 ? new short[Math.min(n, perMap)] : null;
+    for (int from = 0; from < n; from += perMap) {
+      int count = Math.min(perMap, n - from);
+      MappedByteBuffer buffer = map(channel, offset + (long) from * bytes,
+          (long) count * bytes);
+      if (bytes == 1) {
+        buffer.get(narrow, 0, count);
+        for (int i = 0; i < count; i++) {
+          codes[from + i] = narrow[i];
+        }
+      } else if (bytes == 2) {
+        buffer.asShortBuffer().get(medium, 0, count);
+        for (int i = 0; i < count; i++) {
+          codes[from + i] = medium[i];
+        }
+      } else {
+        buffer.asIntBuffer().get(codes, from, count);
+      }
+    }
+    return codes;
+  }
+
+  private static double[] readDoubles(FileChannel channel, long offset, int n)
+      throws IOException {
+    double[] values = new double[n];
+    int perMap = MAX_MAP_BYTES / 8;
+    for (int from = 0; from < n; from += perMap) {
+      int count = Math.min(perMap, n - from);
+      map(channel, offset + 8L * from, 8L * count).asDoubleBuffer()
+          .get(values, from, count);
+    }
+    return values;
+  }
+
+  /**
+   * Buffered little endian writer at a position of a channel
+   */
+  private static class Writer {
+
+    private final FileChannel m_channel;
+    private final ByteBuffer m_buffer = ByteBuffer.allocate(1 << 16)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    private long m_position;
+
+    Writer(FileChannel channel, long position) {
+      m_channel = channel;
+      m_position = position;
+    }
+
+    long position() {
+      return m_position + m_buffer.position();
+    }
+
+    private void ensure(int bytes) throws IOException {
+      if (m_buffer.remaining() < bytes) {
+        flush();
+      }
+    }
+
+    void flush() throws IOException {
+      m_buffer.flip();
+      while (m_buffer.hasRemaining()) {
+        m_position += m_channel.write(m_buffer, m_position);
+      }
+      m_buffer.clear();
+    }
+
+    void putByte(byte b) throws IOException {
+      ensure(1);
+      m_buffer.put(b);
+    }
+
+    void putShort(short s) throws IOException {
+      ensure(2);
+      m_buffer.putShort(s);
+    }
+
+    void putInt(int i) throws IOException {
+      ensure(4);
+      m_buffer.putInt(i);
+    }
+
+    void putLong(long l) throws IOException {
+      ensure(8);
+      m_buffer.putLong(l);
+    }
+
+    void putDouble(double d) throws IOException {
+      ensure(8);
+      m_buffer.putDouble(d);
+    }
+
+    void putBytes(byte[] bytes) throws IOException {
+      for (byte b : bytes) {
+        putByte(b);
+      }
+    }
+
+    /**
+     * Pads to the next multiple of 8 bytes.
+     */
+    void align() throws IOException {
+      while ((position() & 7) != 0) {
+        putByte((byte) 0);
+      }
+    }
+  }
+}
@@ -0,0 +1,541 @@
+package attributeSelection;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A dataset held column by column, as the evaluators consume it, instead of
+ * as one Instance object per row. Nominal columns are dictionary encoded as
+ * the index of the value in the header (-1 for missing), numeric and date
+ * columns are kept as doubles (NaN for missing). Rows are weighted, a null
+ * weight column meaning every weight is 1.
+ * <p>
+ * Only nominal, numeric and date attributes are supported.
+ * <p>
+ * A dataset remembers how it was prepared for the evaluators: as loaded,
+ * discretized or binarized, with the cut points of the attributes it
+ * discretized, so that a prepared dataset (read back from a ColumnarCache
+ * say) is not prepared again.
+ *
+ * @author Suhel Hammoud (suhel.hammoud@gmail.com)
+ * @version $Revision: 00000 $
+ * @see ColumnarArffLoader
+ * @see ColumnarCache
+ */
+public class ColumnarData {
+
+  /**
+   * How numeric attributes were made nominal, if at all
+   */
+  public enum Preparation {
+    /**
+     * as loaded
+     */
+    NONE,
+    /**
+     * discretized by the MDL criterion
+     */
+    DISCRETIZED,
+    /**
+     * binarized, zero against non zero
+     */
+    BINARIZED
+  }
+
+  /**
+   * Code of a missing nominal value
+   */
+  public static final int MISSING = -1;
+
+  /**
+   * Precision of the bin ranges in the names of discretized values, as
+   * Discretize names them
+   */
+  private static final int BIN_RANGE_PRECISION = 6;
+
+  /**
+   * The header, without any rows
+   */
+  private final Instances m_header;
+
+  private final int m_numInstances;
+
+  /**
+   * Value codes of the nominal columns, null for the others
+   */
+  private final int[][] m_codes;
+
+  /**
+   * Values of the numeric columns, null for the others
+   */
+  private final double[][] m_values;
+
+  /**
+   * Row weights, null if all are 1
+   */
+  private final double[] m_weights;
+
+  private final Preparation m_preparation;
+
+  /**
+   * Cut points of each discretized attribute, null for the others
+   */
+  private final double[][] m_cutPoints;
+
+  /**
+   * @param header       the header, any rows are ignored
+   * @param numInstances the number of rows
+   * @param codes        the codes of each nominal column, null for the others
+   * @param values       the values of each numeric column, null for the
+   *                     others
+   * @param weights      the row weights, null if all are 1
+   */
+  public ColumnarData(Instances header, int numInstances, int[][] codes,
+                      double[][] values, double[] weights) {
+    this(header, numInstances, codes, values, weights, Preparation.NONE,
+        new double[header.numAttributes()][]);
+  }
+
+  /**
+   * @param header       the header, any rows are ignored
+   * @param numInstances the number of rows
+   * @param codes        the codes of each nominal column, null for the others
+   * @param values       the values of each numeric column, null for the
+   *                     others
+   * @param weights      the row weights, null if all are 1
+   * @param preparation  how the numeric attributes were made nominal
+   * @param cutPoints    the cut points of each discretized attribute, null
+   *                     for the others
+   */
+  public ColumnarData(Instances header, int numInstances, int[][] codes,
+                      double[][] values, double[] weights,
+                      Preparation preparation, double[][] cutPoints) {
+    m_header = new Instances(header, 0);
+    m_numInstances = numInstances;
+    m_codes = codes;
+    m_values = values;
+    m_weights = weights;
+    m_preparation = preparation;
+    m_cutPoints = cutPoints;
+  }
+
+  /**
+   * Encodes a dataset column by column.
+   *
+   * @param data the dataset
+   * @return its columns
+   * @throws IllegalArgumentException if an attribute is neither nominal nor
+   *                                  numeric
+   */
+  public static ColumnarData fromInstances(Instances data) {
+    return fromInstances(data, null);
+  }
+
+  /**
+   * Encodes a sample of a dataset drawn with replacement column by column,
+   * given as the number of times each row was sampled. Every sampled row is
+   * encoded once, its weight multiplied by its multiplicity, and the rows
+   * never sampled are left out, so the columns count as the sample would
+   * with its repeats copied out.
+   *
+   * @param data           the dataset
+   * @param multiplicities the multiplicity of every row of data, null to
+   *                       encode every row once
+   * @return the columns of the sample
+   * @throws IllegalArgumentException if an attribute is neither nominal nor
+   *                                  numeric
+   */
+  public static ColumnarData fromInstances(Instances data,
+                                           int[] multiplicities) {
+    int numAttributes = data.numAttributes();
+    int numInstances = data.numInstances();
+    if (multiplicities != null) {
+      numInstances = 0;
+      for (int multiplicity : multiplicities) {
+        if (multiplicity > 0) {
+          numInstances++;
+        }
+      }
+    }
+    int[][] codes = new int[numAttributes][];
+    double[][] values = new double[numAttributes][];
+    for (int k = 0; k < numAttributes; k++) {
+      Attribute att = data.attribute(k);
+      if (att.isNominal()) {
+        codes[k] = new int[numInstances];
+      } else if (att.isNumeric()) {
+        values[k] = new double[numInstances];
+      } else {
+        throw new IllegalArgumentException("Unsupported attribute type: "
+            + att.name());
+      }
+    }
+    double[] weights = null;
+    int i = 0;
+    for (int row = 0; row < data.numInstances(); row++) {
+      int multiplicity = multiplicities == null ? 1 : multiplicities[row];
+      if (multiplicity <= 0) {
+        continue;
+      }
+      Instance instance = data.instance(row);
+      double weight = instance.weight() * multiplicity;
+      if (weight != 1.0) {
+        if (weights == null) {
+          weights = new double[numInstances];
+          Arrays.fill(weights, 1.0);
+        }
+        weights[i] = weight;
+      }
+      for (int k = 0; k < numAttributes; k++) {
+        double v = instance.value(k);
+        if (codes[k] != null) {
+          codes[k][i] = Utils.isMissingValue(v) ? MISSING : (int) v;
+        } else {
+          values[k][i] = v;
+        }
+      }
+      i++;
+    }
+    return new ColumnarData(data, numInstances, codes, values, weights);
+  }
+
+  /**
+   * @return the header, without any rows
+   */
+  public Instances header() {
+    return m_header;
+  }
+
+  public int numInstances() {
+    return m_numInstances;
+  }
+
+  public int numAttributes() {
+    return m_header.numAttributes();
+  }
+
+  public Attribute attribute(int index) {
+    return m_header.attribute(index);
+  }
+
+  public int classIndex() {
+    return m_header.classIndex();
+  }
+
+  /**
+   * @param classIndex the index of the class attribute, -1 for none
+   */
+  public void setClassIndex(int classIndex) {
+    m_header.setClassIndex(classIndex);
+  }
+
+  /**
+   * @param index the index of a nominal attribute
+   * @return the value codes of the column, MISSING for a missing value; not
+   * a copy
+   */
+  public int[] codes(int index) {
+    return m_codes[index];
+  }
+
+  /**
+   * @param index the index of a numeric attribute
+   * @return the values of the column, NaN for a missing value; not a copy
+   */
+  public double[] values(int index) {
+    return m_values[index];
+  }
+
+  /**
+   * @return the row weights, null if all are 1; not a copy
+   */
+  public double[] weights() {
+    return m_weights;
+  }
+
+  /**
+   * @return how the numeric attributes were made nominal
+   */
+  public Preparation preparation() {
+    return m_preparation;
+  }
+
+  /**
+   * @param index the index of an attribute
+   * @return the cut points the attribute was discretized with, null if it
+   * was not discretized or has a single bin
+   */
+  public double[] cutPoints(int index) {
+    return m_cutPoints[index];
+  }
+
+  /**
+   * @param row the index of a row
+   * @return its weight
+   */
+  public double weight(int row) {
+    return m_weights == null ? 1.0 : m_weights[row];
+  }
+
+  /**
+   * Builds the Instances of the dataset, one DenseInstance per row.
+   *
+   * @return the dataset
+   */
+  public Instances toInstances() {
+    int numAttributes = numAttributes();
+    Instances result = new Instances(m_header, m_numInstances);
+    for (int i = 0; i < m_numInstances; i++) {
+      double[] vals = new double[numAttributes];
+      for (int k = 0; k < numAttributes; k++) {
+        if (m_codes[k] != null) {
+          vals[k] = m_codes[k][i] == MISSING ? Utils.missingValue()
+              : m_codes[k][i];
+        } else {
+          vals[k] = m_values[k][i];
+        }
+      }
+      result.add(new DenseInstance(weight(i), vals));
+    }
+    return result;
+  }
+
+  /**
+   * Prepares the dataset for the contingency table evaluators, unless it
+   * has been prepared the same way already.
+   *
+   * @param binarize true to binarize instead of discretizing
+   * @return the prepared dataset, this one if it was prepared already
+   * @throws IllegalStateException if the dataset was prepared the other way
+   */
+  public ColumnarData prepare(boolean binarize) {
+    Preparation wanted = binarize ? Preparation.BINARIZED
+        : Preparation.DISCRETIZED;
+    if (m_preparation == wanted) {
+      return this;
+    }
+    if (m_preparation != Preparation.NONE) {
+      throw new IllegalStateException("Dataset is " + m_preparation
+          + " already, cannot make it " + wanted);
+    }
+    return discretize(binarize);
+  }
+
+  /**
+   * Weighted contingency table of a nominal attribute against the (nominal)
+   * class, with an extra last row for a missing value and an extra last
+   * column for a missing class, as the evaluators count them.
+   *
+   * @param index the index of a nominal attribute
+   * @return the table
+   */
+  public double[][] contingencyTable(int index) {
+    int classIndex = classIndex();
+    int numValues = attribute(index).numValues();
+    int numClasses = attribute(classIndex).numValues();
+    int[] column = m_codes[index];
+    int[] classes = m_codes[classIndex];
+    double[][] counts = new double[numValues + 1][numClasses + 1];
+    for (int i = 0; i < m_numInstances; i++) {
+      int value = column[i] == MISSING ? numValues : column[i];
+      int cls = classes[i] == MISSING ? numClasses : classes[i];
+      counts[value][cls] += weight(i);
+    }
+    return counts;
+  }
+
+  /**
+   * Makes every numeric attribute other than the class nominal, as L2 and
+   * chi squared evaluate them. Attributes are either discretized with the
+   * MDL criterion of Fayyad and Irani, giving the same cut points as the
+   * supervised Discretize filter with better encoding, or binarized as by
+   * NumericToBinary (0 for zero, 1 for any other value).
+   *
+   * @param binarize true to binarize instead of discretizing
+   * @return the nominal dataset, sharing the columns that were nominal
+   * already
+   */
+  public ColumnarData discretize(boolean binarize) {
+    int classIndex = classIndex();
+    if (!binarize && (classIndex < 0 || !attribute(classIndex).isNominal())) {
+      throw new IllegalStateException("Discretizing needs a nominal class");
+    }
+    int numAttributes = numAttributes();
+    int[][] codes = new int[numAttributes][];
+    double[][] values = new double[numAttributes][];
+    double[][] allCutPoints = new double[numAttributes][];
+    ArrayList<Attribute> attributes = new ArrayList<Attribute>(numAttributes);
+    for (int k = 0; k < numAttributes; k++) {
+      Attribute att = attribute(k);
+      if (m_codes[k] != null || k == classIndex) {
+        codes[k] = m_codes[k];
+        values[k] = m_values[k];
+        attributes.add((Attribute) att.copy());
+      } else if (binarize) {
+        codes[k] = binarizeColumn(m_values[k]);
+        ArrayList<String> labels = new ArrayList<String>(2);
+        labels.add("0");
+        labels.add("1");
+        attributes.add(new Attribute(att.name() + "_binarized", labels));
+      } else {
+        double[] cutPoints = mdlCutPoints(k);
+        allCutPoints[k] = cutPoints;
+        codes[k] = binColumn(m_values[k], cutPoints);
+        attributes.add(new Attribute(att.name(), binLabels(cutPoints)));
+      }
+    }
+    Instances header = new Instances(m_header.relationName(), attributes, 0);
+    header.setClassIndex(classIndex);
+    return new ColumnarData(header, m_numInstances, codes, values, m_weights,
+        binarize ? Preparation.BINARIZED : Preparation.DISCRETIZED,
+        allCutPoints);
+  }
+
+  private static int[] binarizeColumn(double[] column) {
+    int[] codes = new int[column.length];
+    for (int i = 0; i < column.length; i++) {
+      double v = column[i];
+      codes[i] = Double.isNaN(v) ? MISSING : (v == 0 ? 0 : 1);
+    }
+    return codes;
+  }
+
+  /**
+   * Bins a column by its cut points, a value v going to the first bin j with
+   * v &lt;= cutPoints[j], as Discretize bins it.
+   *
+   * @param column    the values
+   * @param cutPoints the cut points in ascending order, null for none
+   * @return the bin of every value
+   */
+  static int[] binColumn(double[] column, double[] cutPoints) {
+    int[] codes = new int[column.length];
+    for (int i = 0; i < column.length; i++) {
+      codes[i] = bin(column[i], cutPoints);
+    }
+    return codes;
+  }
+
+  /**
+   * @param v         a value
+   * @param cutPoints the cut points in ascending order, null for none
+   * @return the bin of v, MISSING if it is missing
+   */
+  static int bin(double v, double[] cutPoints) {
+    if (Double.isNaN(v)) {
+      return MISSING;
+    }
+    if (cutPoints == null) {
+      return 0;
+    }
+    // first j with v <= cutPoints[j]
+    int lo = 0;
+    int hi = cutPoints.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (v <= cutPoints[mid]) {
+        hi = mid;
+      } else {
+        lo = mid + 1;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Names of the bins, as Discretize names them.
+   *
+   * @param cutPoints the cut points, null for none
+   * @return the names
+   */
+  static ArrayList<String> binLabels(double[] cutPoints) {
+    ArrayList<String> labels = new ArrayList<String>();
+    if (cutPoints == null) {
+      labels.add("'All'");
+      return labels;
+    }
+    for (int j = 0; j <= cutPoints.length; j++) {
+      String low = j == 0 ? "-inf"
+          : Utils.doubleToString(cutPoints[j - 1], BIN_RANGE_PRECISION);
+      String high = j == cutPoints.length ? "inf"
+          : Utils.doubleToString(cutPoints[j], BIN_RANGE_PRECISION);
+      labels.add("'(" + low + "-" + high + (j == cutPoints.length ? ")'" : "]'"));
+    }
+    return labels;
+  }
+
+  /**
+   * Cut points of a numeric attribute by the MDL criterion of Fayyad and
+   * Irani. Rows with a missing value or a missing class are left out.
+   *
+   * @param index the index of a numeric attribute
+   * @return the cut points in ascending order, null if there are none
+   */
+  public double[] mdlCutPoints(int index) {
+    double[] column = m_values[index];
+    int[] classes = m_codes[classIndex()];
+    int numClasses = attribute(classIndex()).numValues();
+
+    int n = 0;
+    int[] order = new int[m_numInstances];
+    for (int i = 0; i < m_numInstances; i++) {
+      if (!Double.isNaN(column[i]) && classes[i] != MISSING) {
+        order[n++] = i;
+      }
+    }
+    order = Arrays.copyOf(order, n);
+    sortByValue(order, column);
+
+    // one group per distinct value
+    double[] distinct = new double[n];
+    double[][] counts = new double[n][];
+    int numGroups = 0;
+    for (int i = 0; i < n; i++) {
+      double v = column[order[i]];
+      if (numGroups == 0 || distinct[numGroups - 1] < v) {
+        distinct[numGroups] = v;
+        counts[numGroups++] = new double[numClasses];
+      }
+      counts[numGroups - 1][classes[order[i]]] += weight(order[i]);
+    }
+    distinct = Arrays.copyOf(distinct, numGroups);
+    return new MdlCutter(distinct, distinct, Arrays.copyOf(counts, numGroups),
+        null, numClasses).cutPoints();
+  }
+
+  /**
+   * Stable merge sort of row indexes by their value.
+   */
+  private static void sortByValue(int[] order, double[] column) {
+    int[] buffer = new int[order.length];
+    for (int width = 1; width < order.length; width <<= 1) {
+      for (int lo = 0; lo < order.length - width; lo += 2 * width) {
+        int mid = lo + width;
+        int hi = Math.min(lo + 2 * width, order.length);
+        if (column[order[mid - 1]] <= column[order[mid]]) {
+          continue;
+        }
+        int i = lo;
+        int j = mid;
+        int k = lo;
+        while (i < mid && j < hi) {
+          buffer[k++] = column[order[j]] < column[order[i]] ? order[j++]
+              : order[i++];
+        }
+        while (i < mid) {
+          buffer[k++] = order[i++];
+        }
+        while (j < hi) {
+          buffer[k++] = order[j++];
+        }
+        System.arraycopy(buffer, lo, order, lo, hi - lo);
+      }
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package attributeSelection;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Correlation matrix holding the attribute intercorrelations as 16 bit fixed
+ * point numbers in a single flat triangle, half the size of a float matrix.
+ * Which entries have been computed is kept in a separate bitmap. Correlations
+ * with the class are kept as floats, so the numerator of the merit is exact.
+ * <p>
+ * The correlations are in [0, 1] and stored as round(v * 65535), so a stored
+ * value is off by at most 0.5 / 65535 (about 7.6e-6). In the denominator of
+ * the merit of a k attribute subset every intercorrelation is weighted by
+ * 2 * s_i * s_j &lt;= s_i^2 + s_j^2, the denominator is therefore off by at
+ * most (k - 1) * 7.6e-6 of itself and the merit by at most half of that,
+ * about 3.8e-6 * (k - 1) relative.
+ *
+ * @author Suhel Hammoud (suhel.hammoud@gmail.com)
+ * @version $Revision: 00000 $
+ */
+class CompactCorrelationMatrix implements CorrelationMatrix {
+
+  /**
+   * for serialization
+   */
+  static final long serialVersionUID = -8047733816275026943L;
+
+  /**
+   * Largest fixed point value, stands for a correlation of 1
+   */
+  private static final int SCALE = 0xFFFF;
+
+  /**
+   * Largest bound on the error of a stored correlation
+   */
+  static final double MAX_ERROR = 0.5 / SCALE;
+
+  private final int m_classIndex;
+
+  /**
+   * Correlations with the class, by attribute
+   */
+  private final float[] m_classCorr;
+
+  /**
+   * Entry (row, col) is at row * (row - 1) / 2 + col
+   */
+  private final short[] m_values;
+
+  /**
+   * Bit set once the entry is computed, the write of the bit publishes the
+   * value written before it
+   */
+  private final AtomicLongArray m_computed;
+
+  /**
+   * @param numAttribs the number of attributes, including the class
+   * @param classIndex the index of the class attribute
+   */
+  CompactCorrelationMatrix(int numAttribs, int classIndex) {
+    long entries = (long) numAttribs * (numAttribs - 1) / 2;
+    if (entries > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("Too many attributes for a compact "
+          + "correlation matrix: " + numAttribs);
+    }
+    m_classIndex = classIndex;
+    m_classCorr = new float[numAttribs];
+    Arrays.fill(m_classCorr, UNCOMPUTED);
+    m_values = new short[(int) entries];
+    m_computed = new AtomicLongArray((int) ((entries + 63) >>> 6));
+  }
+
+  @Override
+  public float get(int row, int col) {
+    if (row == m_classIndex) {
+      return m_classCorr[col];
+    }
+    if (col == m_classIndex) {
+      return m_classCorr[row];
+    }
+
+    int index = (int) ((long) row * (row - 1) / 2) + col;
+    if ((m_computed.get(index >>> 6) & (1L << index)) == 0) {
+      return UNCOMPUTED;
+    }
+    return (m_values[index] & SCALE) / (float) SCALE;
+  }
+
+  @Override
+  public void set(int row, int col, float value) {
+    if (row == m_classIndex) {
+      m_classCorr[col] = value;
+      return;
+    }
+    if (col == m_classIndex) {
+      m_classCorr[row] = value;
+      return;
+    }
+
+    int index = (int) ((long) row * (row - 1) / 2) + col;
+    float clamped = Math.max(0.0f, Math.min(1.0f, value));
+    m_values[index] = (short) Math.round(clamped * SCALE);
+    long bit = 1L << index;
+    long word;
+    do {
+      word = m_computed.get(index >>> 6);
+    } while ((word & bit) == 0
+        && !m_computed.compareAndSet(index >>> 6, word, word | bit));
+  }
+
+  @Override
+  public void flush() {
+  }
+}
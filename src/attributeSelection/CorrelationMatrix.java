@@ -0,0 +1,46 @@
+package attributeSelection;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Storage for the lower triangle of the attribute correlation matrix of
+ * VaCfsEval. Entries are addressed by (row, col) with col &lt; row, the
+ * diagonal is implicitly 1 and never stored. An entry that has not been
+ * computed yet reads as UNCOMPUTED.
+ * <p>
+ * Implementations must tolerate concurrent reads and writes of different
+ * entries, an entry is only ever written with the same value.
+ *
+ * @author Suhel Hammoud (suhel.hammoud@gmail.com)
+ * @version $Revision: 00000 $
+ */
+interface CorrelationMatrix extends Serializable {
+
+  /**
+   * Value of an entry that has not been computed yet
+   */
+  float UNCOMPUTED = -999;
+
+  /**
+   * @param row the larger of the two attribute indexes
+   * @param col the smaller of the two attribute indexes
+   * @return the stored correlation, or UNCOMPUTED
+   */
+  float get(int row, int col);
+
+  /**
+   * @param row   the larger of the two attribute indexes
+   * @param col   the smaller of the two attribute indexes
+   * @param value the correlation
+   */
+  void set(int row, int col, float value);
+
+  /**
+   * Makes sure everything stored so far survives the JVM, a no-op for
+   * matrices that live on the heap.
+   *
+   * @throws IOException if the matrix could not be written out
+   */
+  void flush() throws IOException;
+}
@@ -0,0 +1,49 @@
+package attributeSelection;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Correlation matrix holding only the entries that have been set, in a hash
+ * map keyed by the pair. Memory grows with the number of entries computed,
+ * not with the square of the number of attributes, which suits data kept
+ * alongside a matrix that itself only holds part of the triangle.
+ *
+ * @author Suhel Hammoud (suhel.hammoud@gmail.com)
+ * @version $Revision: 00000 $
+ */
+class HashCorrelationMatrix implements CorrelationMatrix {
+
+  /**
+   * for serialization
+   */
+  static final long serialVersionUID = 4719503350384467811L;
+
+  private final ConcurrentHashMap<Long, Float> m_entries =
+      new ConcurrentHashMap<Long, Float>();
+
+  private static Long key(int row, int col) {
+    return ((long) row << 32) | col;
+  }
+
+  @Override
+  public float get(int row, int col) {
+    Float value = m_entries.get(key(row, col));
+    return value == null ? UNCOMPUTED : value;
+  }
+
+  @Override
+  public void set(int row, int col, float value) {
+    m_entries.put(key(row, col), value);
+  }
+
+  /**
+   * @return the number of entries set
+   */
+  int size() {
+    return m_entries.size();
+  }
+
+  @Override
+  public void flush() {
+  }
+}
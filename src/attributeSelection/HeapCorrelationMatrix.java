@@ -0,0 +1,44 @@
+package attributeSelection;
+
+import java.util.Arrays;
+
+/**
+ * Correlation matrix held on the heap as a jagged float triangle.
+ *
+ * @author Suhel Hammoud (suhel.hammoud@gmail.com)
+ * @version $Revision: 00000 $
+ */
+class HeapCorrelationMatrix implements CorrelationMatrix {
+
+  /**
+   * for serialization
+   */
+  static final long serialVersionUID = 6304452104376412190L;
+
+  /**
+   * Row i holds the correlations of attribute i with attributes 0 to i - 1
+   */
+  private final float[][] m_rows;
+
+  HeapCorrelationMatrix(int numAttribs) {
+    m_rows = new float[numAttribs][];
+    for (int i = 0; i < numAttribs; i++) {
+      m_rows[i] = new float[i];
+      Arrays.fill(m_rows[i], UNCOMPUTED);
+    }
+  }
+
+  @Override
+  public float get(int row, int col) {
+    return m_rows[row][col];
+  }
+
+  @Override
+  public void set(int row, int col, float value) {
+    m_rows[row][col] = value;
+  }
+
+  @Override
+  public void flush() {
+  }
+}
@@ -0,0 +1,303 @@
+package attributeSelection;
+
+import weka.attributeSelection.*;
+import weka.core.*;
+
+import java.util.BitSet;
+import java.util.Enumeration;
+import java.util.Vector;
+
+/**
+ * <!-- globalinfo-start --> IncrementalSubsetSearch :<br/>
+ * <br/>
+ * Runs a subset search (GreedyStepwise, BestFirst, ...) against VaCfsEval
+ * using the running merit of VaCfsEval.SubsetMerit. Successive subsets asked
+ * for by these searches differ from each other by one or two attributes, so
+ * instead of re-evaluating every subset from scratch in O(k^2), the last
+ * evaluated subset of the calling thread is moved to the new one in O(k) per
+ * differing attribute. Any other evaluator is passed to the search untouched.
+ * <p/>
+ * <!-- globalinfo-end -->
+ * <p>
+ * <!-- options-start --> Valid options are:
+ * <p/>
+ *
+ * <pre>
+ * -S &lt;search&gt;
+ *  The search method to run, with its options.
+ *  (default weka.attributeSelection.GreedyStepwise)
+ * </pre>
+ * <p>
+ * <!-- options-end -->
+ *
+ * @author Suhel Hammoud (suhel.hammoud@gmail.com)
+ * @version $Revision: 00000 $
+ * @see VaCfsEval.SubsetMerit
+ */
+public class IncrementalSubsetSearch extends ASSearch implements OptionHandler {
+
+  /**
+   * for serialization
+   */
+  static final long serialVersionUID = 2715338400120914781L;
+
+  /**
+   * The search method that drives the evaluations
+   */
+  protected ASSearch m_search;
+
+  /**
+   * Constructor
+   */
+  public IncrementalSubsetSearch() {
+    resetOptions();
+  }
+
+  /**
+   * Returns a string describing this search method
+   *
+   * @return a description of the search suitable for displaying in the
+   * explorer/experimenter gui
+   */
+  public String globalInfo() {
+    return "IncrementalSubsetSearch :\n\nRuns the given subset search with "
+        + "VaCfsEval merits updated incrementally: each evaluated subset is "
+        + "derived from the previous one by adding and removing attributes, "
+        + "which is linear rather than quadratic in the subset size.\n";
+  }
+
+  /**
+   * Returns an enumeration describing the available options.
+   *
+   * @return an enumeration of all the available options.
+   **/
+  @Override
+  public Enumeration<Option> listOptions() {
+    Vector<Option> newVector = new Vector<Option>(1);
+    newVector.addElement(new Option("\tThe search method to run, with its "
+        + "options.\n\t(default weka.attributeSelection.GreedyStepwise)",
+        "S", 1, "-S <search>"));
+    return newVector.elements();
+  }
+
+  /**
+   * Parses a given list of options.
+   * <p/>
+   * <p>
+   * <!-- options-start --> Valid options are:
+   * <p/>
+   *
+   * <pre>
+   * -S &lt;search&gt;
+   *  The search method to run, with its options.
+   *  (default weka.attributeSelection.GreedyStepwise)
+   * </pre>
+   * <p>
+   * <!-- options-end -->
+   *
+   * @param options the list of options as an array of strings
+   * @throws Exception if an option is not supported
+   */
+  @Override
+  public void setOptions(String[] options) throws Exception {
+    resetOptions();
+
+    String searchString = Utils.getOption('S', options);
+    if (searchString.length() != 0) {
+      String[] searchSpec = Utils.splitOptions(searchString);
+      String searchName = searchSpec[0];
+      searchSpec[0] = "";
+      setSearch(ASSearch.forName(searchName, searchSpec));
+    }
+
+    Utils.checkForRemainingOptions(options);
+  }
+
+  /**
+   * Gets the current settings.
+   *
+   * @return an array of strings suitable for passing to setOptions()
+   */
+  @Override
+  public String[] getOptions() {
+    Vector<String> options = new Vector<String>();
+
+    options.add("-S");
+    String spec = m_search.getClass().getName();
+    if (m_search instanceof OptionHandler) {
+      spec += " "
+          + Utils.joinOptions(((OptionHandler) m_search).getOptions());
+    }
+    options.add(spec.trim());
+
+    return options.toArray(new String[0]);
+  }
+
+  /**
+   * Returns the tip text for this property
+   *
+   * @return tip text for this property suitable for displaying in the
+   * explorer/experimenter gui
+   */
+  public String searchTipText() {
+    return "The subset search method to run.";
+  }
+
+  /**
+   * Sets the search method to run
+   *
+   * @param search the search method
+   */
+  public void setSearch(ASSearch search) {
+    m_search = search;
+  }
+
+  /**
+   * Gets the search method to run
+   *
+   * @return the search method
+   */
+  public ASSearch getSearch() {
+    return m_search;
+  }
+
+  /**
+   * Runs the wrapped search. When the evaluator is a VaCfsEval the search is
+   * handed an evaluator that keeps a running merit per thread.
+   *
+   * @param ASEval the attribute evaluator to guide the search
+   * @param data   the training instances.
+   * @return an array (not necessarily ordered) of selected attribute indexes
+   * @throws Exception if the search can't be completed
+   */
+  @Override
+  public int[] search(ASEvaluation ASEval, Instances data) throws Exception {
+    if (ASEval instanceof VaCfsEval) {
+      return m_search.search(new IncrementalEvaluator((VaCfsEval) ASEval),
+          data);
+    }
+    return m_search.search(ASEval, data);
+  }
+
+  /**
+   * Describe the search
+   *
+   * @return a description of the search
+   */
+  @Override
+  public String toString() {
+    return "\tIncremental merits over:\n" + m_search.toString();
+  }
+
+  /**
+   * Resets stuff to default values
+   */
+  protected void resetOptions() {
+    m_search = new GreedyStepwise();
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return the revision
+   */
+  @Override
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 00000 $");
+  }
+
+  /**
+   * Subset evaluator handed to the wrapped search. Every thread keeps the
+   * running merit of the last subset it evaluated and moves it to the
+   * requested subset, falling back to a full evaluation when the two are too
+   * far apart.
+   */
+  protected static class IncrementalEvaluator extends ASEvaluation
+      implements SubsetEvaluator, ThreadSafe {
+
+    /**
+     * for serialization
+     */
+    static final long serialVersionUID = -3851190225461830613L;
+
+    /**
+     * Number of incremental updates after which a running merit is rebuilt,
+     * so rounding errors from additions and removals can't pile up
+     */
+    protected static final int REBUILD_INTERVAL = 10000;
+
+    /**
+     * The evaluator doing the actual work
+     */
+    protected final VaCfsEval m_eval;
+
+    /**
+     * The running merit of each thread
+     */
+    protected transient ThreadLocal<VaCfsEval.SubsetMerit> m_last;
+
+    /**
+     * Number of updates applied to the running merit of each thread
+     */
+    protected transient ThreadLocal<int[]> m_updates;
+
+    protected IncrementalEvaluator(VaCfsEval eval) {
+      m_eval = eval;
+      m_last = new ThreadLocal<VaCfsEval.SubsetMerit>();
+      m_updates = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+          return new int[1];
+        }
+      };
+    }
+
+    @Override
+    public void buildEvaluator(Instances data) throws Exception {
+      // the wrapped evaluator has been built already
+    }
+
+    /**
+     * evaluates a subset of attributes
+     *
+     * @param subset a bitset representing the attribute subset to be evaluated
+     * @return the merit
+     * @throws Exception if the subset could not be evaluated
+     */
+    @Override
+    public double evaluateSubset(BitSet subset) throws Exception {
+      VaCfsEval.SubsetMerit merit = m_last.get();
+      int[] updates = m_updates.get();
+
+      if (merit != null) {
+        BitSet diff = merit.getSubset();
+        diff.xor(subset);
+        int changes = diff.cardinality();
+
+        // each change costs O(k), a full evaluation O(k^2)
+        if (changes <= Math.max(2, merit.size() / 2)
+            && updates[0] + changes <= REBUILD_INTERVAL) {
+          for (int i = diff.nextSetBit(0); i >= 0; i = diff.nextSetBit(i + 1)) {
+            if (subset.get(i)) {
+              merit.add(i);
+            } else {
+              merit.remove(i);
+            }
+          }
+          updates[0] += changes;
+          return merit.merit();
+        }
+      }
+
+      merit = m_eval.newSubsetMerit(subset);
+      m_last.set(merit);
+      updates[0] = 0;
+      return merit.merit();
+    }
+
+    @Override
+    public String getRevision() {
+      return RevisionUtils.extract("$Revision: 00000 $");
+    }
+  }
+}
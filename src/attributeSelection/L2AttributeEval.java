@@ -4,10 +4,13 @@ import weka.attributeSelection.ASEvaluation;
 import weka.attributeSelection.AttributeEvaluator;
 import weka.core.*;
 import weka.core.Capabilities.Capability;
+import weka.core.converters.ArffLoader;
 import weka.filters.Filter;
 import weka.filters.supervised.attribute.Discretize;
+import weka.filters.supervised.instance.SampledView;
 import weka.filters.unsupervised.attribute.NumericToBinary;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Vector;
@@ -85,6 +88,11 @@ public class L2AttributeEval extends ASEvaluation implements
    */
   private double[] m_L2;
 
+  /**
+   * Bins kept per numeric attribute when streaming an ARFF file
+   */
+  public static final int DEFAULT_MAX_BINS = 4096;
+
   /**
    * Returns a string describing this attribute evaluator
    *
@@ -342,12 +350,195 @@ public class L2AttributeEval extends ASEvaluation implements
 //              System.out.println(printContingencyTable(counts[i]));
 //            });
 
+    computeL2(counts, classIndex, numClasses);
+  }
+
+  /**
+   * Initializes a L2 attribute evaluator from a columnar dataset, such as
+   * ColumnarArffLoader produces, without building Instances. Numeric
+   * attributes are discretized (or binarized) on the columns, with the
+   * same cut points as the Discretize filter, so the L2 values are the same
+   * as those of buildEvaluator(Instances) on the same data. A dataset
+   * prepared already, as read from a ColumnarCache, is used as it is.
+   *
+   * @param data the columnar dataset, with a nominal class set
+   * @throws Exception if the evaluator has not been generated successfully
+   */
+  public void buildEvaluator(ColumnarData data) throws Exception {
+
+    int classIndex = data.classIndex();
+    if (classIndex < 0 || !data.attribute(classIndex).isNominal()) {
+      throw new UnsupportedAttributeTypeException(
+          "L2AttributeEval needs a nominal class");
+    }
+    data = data.prepare(m_Binarize);
+    int numClasses = data.attribute(classIndex).numValues();
+
+    double[][][] counts = new double[data.numAttributes()][][];
+    for (int k = 0; k < data.numAttributes(); k++) {
+      if (k != classIndex) {
+        counts[k] = data.contingencyTable(k);
+      }
+    }
+
+    computeL2(counts, classIndex, numClasses);
+  }
+
+  /**
+   * Initializes a L2 attribute evaluator from a sample kept as row indexes,
+   * such as ImbalanceClassSampler.sampleView draws, without copying the
+   * sampled instances out: every sampled row is counted once with its weight
+   * multiplied by the number of times it was sampled. The L2 values are the
+   * same as those of buildEvaluator(view.toInstances()).
+   *
+   * @param view the sample, over a dataset with a nominal class set
+   * @throws Exception if the evaluator has not been generated successfully
+   */
+  public void buildEvaluator(SampledView view) throws Exception {
+
+    // can evaluator handle dataset?
+    getCapabilities().testWithFail(view.data());
+
+    ColumnarData data = ColumnarData.fromInstances(view.data(),
+        view.multiplicities());
+    data.setClassIndex(view.data().classIndex());
+    buildEvaluator(data);
+  }
+
+  /**
+   * Initializes a L2 attribute evaluator by streaming an ARFF file through
+   * an ArffLoader twice, without ever holding the dataset: the first pass
+   * collects a StreamingHistogram of every numeric attribute and takes the
+   * MDL cut points from it, the second bins the values and counts the
+   * contingency tables. Heap use depends on the number of attributes and
+   * maxBins, not on the number of rows. The L2 values are those of
+   * buildEvaluator(Instances) as long as no numeric attribute has more than
+   * maxBins distinct values; past that the cut points are taken from merged
+   * bins and are approximate. A class boundary formed by rows arriving after
+   * a merge is lost, and the MDL cost undercounts the distinct values, since
+   * values falling inside a merged bin are not counted, which can accept cuts
+   * the exact cost would reject. When binarizing a single pass is enough.
+   *
+   * @param loader  the loader, set to a file so that it can be reset; the
+   *                last attribute is the class unless the structure has one
+   * @param maxBins the number of bins kept per numeric attribute
+   * @throws Exception if the evaluator has not been generated successfully
+   */
+  public void buildEvaluator(ArffLoader loader, int maxBins) throws Exception {
+
+    Instances structure = loader.getStructure();
+    if (structure.classIndex() < 0) {
+      structure.setClassIndex(structure.numAttributes() - 1);
+    }
+    // can evaluator handle dataset? (only the header is known yet)
+    Capabilities capabilities = getCapabilities();
+    capabilities.setMinimumNumberInstances(0);
+    capabilities.testWithFail(structure);
+
+    int classIndex = structure.classIndex();
+    int numAttributes = structure.numAttributes();
+    int numClasses = structure.classAttribute().numValues();
+    Instance inst;
+
+    // first pass: cut points
+    double[][] cutPoints = new double[numAttributes][];
+    if (!m_Binarize) {
+      StreamingHistogram[] histograms = new StreamingHistogram[numAttributes];
+      for (int k = 0; k < numAttributes; k++) {
+        if (k != classIndex && structure.attribute(k).isNumeric()) {
+          histograms[k] = new StreamingHistogram(numClasses, maxBins);
+        }
+      }
+      while ((inst = loader.getNextInstance(structure)) != null) {
+        if (inst.classIsMissing()) {
+          continue;
+        }
+        int cls = (int) inst.classValue();
+        for (int k = 0; k < numAttributes; k++) {
+          if (histograms[k] != null && !inst.isMissing(k)) {
+            histograms[k].add(inst.value(k), cls, inst.weight());
+          }
+        }
+      }
+      for (int k = 0; k < numAttributes; k++) {
+        if (histograms[k] != null) {
+          cutPoints[k] = histograms[k].cutPoints();
+        }
+      }
+      loader.reset();
+      structure = loader.getStructure();
+      structure.setClassIndex(classIndex);
+    }
+
+    // second pass: contingency tables
+    double[][][] counts = new double[numAttributes][][];
+    for (int k = 0; k < numAttributes; k++) {
+      if (k != classIndex) {
+        int numValues;
+        if (structure.attribute(k).isNominal()) {
+          numValues = structure.attribute(k).numValues();
+        } else if (m_Binarize) {
+          numValues = 2;
+        } else {
+          numValues = cutPoints[k] == null ? 1 : cutPoints[k].length + 1;
+        }
+        counts[k] = new double[numValues + 1][numClasses + 1];
+      }
+    }
+    while ((inst = loader.getNextInstance(structure)) != null) {
+      int cls = inst.classIsMissing() ? numClasses : (int) inst.classValue();
+      for (int k = 0; k < numAttributes; k++) {
+        if (k != classIndex) {
+          int value;
+          if (inst.isMissing(k)) {
+            value = counts[k].length - 1;
+          } else if (structure.attribute(k).isNominal()) {
+            value = (int) inst.value(k);
+          } else if (m_Binarize) {
+            value = inst.value(k) == 0 ? 0 : 1;
+          } else {
+            value = ColumnarData.bin(inst.value(k), cutPoints[k]);
+          }
+          counts[k][value][cls] += inst.weight();
+        }
+      }
+    }
+
+    computeL2(counts, classIndex, numClasses);
+  }
+
+  /**
+   * Streams an ARFF file twice to initialize the evaluator, keeping at most
+   * DEFAULT_MAX_BINS bins per numeric attribute.
+   *
+   * @param arffFile the ARFF file, its last attribute the class
+   * @throws Exception if the evaluator has not been generated successfully
+   * @see #buildEvaluator(ArffLoader, int)
+   */
+  public void buildEvaluator(File arffFile) throws Exception {
+    ArffLoader loader = new ArffLoader();
+    loader.setFile(arffFile);
+    buildEvaluator(loader, DEFAULT_MAX_BINS);
+  }
+
+  /**
+   * Computes the L2 value of every attribute from its contingency table,
+   * distributing the counts of missing values first if required.
+   *
+   * @param counts     the contingency table of each attribute, with a last
+   *                   row and column for missing values
+   * @param classIndex the index of the class
+   * @param numClasses the number of class values
+   */
+  private void computeL2(double[][][] counts, int classIndex,
+                         int numClasses) {
+
     /* distribute missing counts if required */
     if (m_missing_merge) {
 
-      for (int k = 0; k < data.numAttributes(); k++) {
+      for (int k = 0; k < counts.length; k++) {
         if (k != classIndex) {
-          int numValues = data.attribute(k).numValues();
+          int numValues = counts[k].length - 1;
 
           // Compute marginals
           double[] rowSums = new double[numValues];
@@ -402,8 +593,8 @@ public class L2AttributeEval extends ASEvaluation implements
 
 
     /* Compute L2 values */
-    m_L2 = new double[data.numAttributes()];
-    for (int i = 0; i < data.numAttributes(); i++) {
+    m_L2 = new double[counts.length];
+    for (int i = 0; i < counts.length; i++) {
       if (i != classIndex) {
         m_L2[i] = l2Val(ContingencyTables.reduceMatrix(counts[i]));
       }
@@ -0,0 +1,293 @@
+package attributeSelection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Correlation matrix stored off the heap in a memory-mapped file, so that it
+ * can be larger than the heap and the operating system pages rows in and out
+ * as needed. The triangle is laid out row after row, entry (row, col) living
+ * at position row * (row - 1) / 2 + col.
+ * <p>
+ * The file starts with a header recording the number of attributes and a
+ * fingerprint of the data the matrix was computed from. Opening an existing
+ * file with a matching header reuses everything computed in earlier runs,
+ * otherwise the file is started afresh.
+ * <p>
+ * The header is followed by a bitmap with a bit for every block of
+ * BLOCK_ROWS rows, the checkpoints of a precompute. A block is only marked
+ * done once its rows, and only its rows, have been forced to disk, so an interrupted precompute
+ * resumes from the blocks it finished and a finished one is not repeated.
+ * <p>
+ * Values are stored xor-ed with the bits of UNCOMPUTED, which makes the
+ * zero bytes of a freshly grown file read as UNCOMPUTED without having to
+ * initialise it.
+ *
+ * @author Suhel Hammoud (suhel.hammoud@gmail.com)
+ * @version $Revision: 00000 $
+ */
+class MappedCorrelationMatrix implements CorrelationMatrix {
+
+  /**
+   * for serialization
+   */
+  static final long serialVersionUID = -2371836906290848157L;
+
+  /**
+   * Identifies a correlation matrix file
+   */
+  static final long MAGIC = 0x5641434653434D31L; // "VACFSCM1"
+
+  /**
+   * Layout version of the file
+   */
+  static final int VERSION = 2;
+
+  /**
+   * Size of the header in bytes
+   */
+  static final int HEADER_BYTES = 64;
+
+  /**
+   * Rows of the triangle per checkpointed block
+   */
+  static final int BLOCK_ROWS = 64;
+
+  /**
+   * Bytes mapped by each buffer, a multiple of 4 below 2GB
+   */
+  private static final long SEGMENT_BYTES = 1L << 30;
+
+  private static final int UNCOMPUTED_BITS = Float.floatToRawIntBits(UNCOMPUTED);
+
+  private final File m_file;
+  private final int m_numAttribs;
+  private final long m_fingerprint;
+
+  /**
+   * True if the file already held a matrix for the same data
+   */
+  private transient boolean m_reused;
+
+  private transient MappedByteBuffer[] m_segments;
+
+  /**
+   * One bit per block of rows, set once the block is on disk
+   */
+  private transient MappedByteBuffer m_blocks;
+
+  /**
+   * Opens the matrix stored in file, or creates it.
+   *
+   * @param file        the file backing the matrix
+   * @param numAttribs  the number of attributes, including the class
+   * @param fingerprint identifies the data the correlations are computed from
+   * @throws IOException if the file can't be opened or mapped
+   */
+  MappedCorrelationMatrix(File file, int numAttribs, long fingerprint)
+      throws IOException {
+    m_file = file;
+    m_numAttribs = numAttribs;
+    m_fingerprint = fingerprint;
+    map();
+  }
+
+  /**
+   * @return true if the matrix was found in the file from an earlier run
+   */
+  boolean isReused() {
+    return m_reused;
+  }
+
+  /**
+   * @return the file backing the matrix
+   */
+  File getFile() {
+    return m_file;
+  }
+
+  /**
+   * @return the fingerprint of the data the correlations are computed from
+   */
+  long getFingerprint() {
+    return m_fingerprint;
+  }
+
+  /**
+   * @return the number of checkpointed blocks of rows
+   */
+  int numBlocks() {
+    return (m_numAttribs + BLOCK_ROWS - 1) / BLOCK_ROWS;
+  }
+
+  /**
+   * @param block the index of a block of rows
+   * @return true if every entry of the block was computed and forced to disk
+   */
+  synchronized boolean isBlockDone(int block) {
+    return (m_blocks.getLong(8 * (block >>> 6)) & (1L << block)) != 0;
+  }
+
+  /**
+   * @return the number of blocks of rows done
+   */
+  synchronized int numBlocksDone() {
+    int done = 0;
+    for (int w = 0; w < m_blocks.capacity(); w += 8) {
+      done += Long.bitCount(m_blocks.getLong(w));
+    }
+    return done;
+  }
+
+  /**
+   * Checkpoints a block of rows: forces the entries of its rows to disk,
+   * then records the block as done.
+   *
+   * @param block the index of a block of rows, every entry of which is set
+   * @throws IOException if the rows can't be forced to disk
+   */
+  void markBlockDone(int block) throws IOException {
+    int rowStart = block * BLOCK_ROWS;
+    flushRows(rowStart, Math.min(m_numAttribs, rowStart + BLOCK_ROWS));
+    synchronized (this) {
+      int word = 8 * (block >>> 6);
+      m_blocks.putLong(word, m_blocks.getLong(word) | (1L << block));
+      m_blocks.force();
+    }
+  }
+
+  /**
+   * Forces the entries of rows [rowStart, rowEnd) to disk, leaving the rest
+   * of the matrix alone. A mapped buffer can only be forced whole, so the
+   * rows are mapped again on their own and that mapping is forced; both
+   * mappings share the pages of the file.
+   *
+   * @param rowStart the first row
+   * @param rowEnd   the row after the last
+   * @throws IOException if the rows can't be mapped
+   */
+  void flushRows(int rowStart, int rowEnd) throws IOException {
+    // row r takes the entries from position(r, 0) up to position(r + 1, 0)
+    long start = position(rowStart, 0);
+    long end = position(rowEnd, 0);
+    if (end <= start) {
+      return;
+    }
+    long dataOffset = HEADER_BYTES + bitmapBytes(m_numAttribs);
+    RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+    try {
+      FileChannel channel = raf.getChannel();
+      for (long pos = start; pos < end; pos += SEGMENT_BYTES) {
+        channel.map(FileChannel.MapMode.READ_WRITE, dataOffset + pos,
+            Math.min(SEGMENT_BYTES, end - pos)).force();
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Number of bytes used by the entries of a matrix over numAttribs
+   * attributes
+   */
+  static long dataBytes(int numAttribs) {
+    return 4L * numAttribs * (numAttribs - 1) / 2;
+  }
+
+  /**
+   * Number of bytes used by the block bitmap of a matrix over numAttribs
+   * attributes
+   */
+  static long bitmapBytes(int numAttribs) {
+    long numBlocks = (numAttribs + BLOCK_ROWS - 1) / BLOCK_ROWS;
+    return 8L * ((numBlocks + 63) / 64);
+  }
+
+  private void map() throws IOException {
+    long dataBytes = dataBytes(m_numAttribs);
+    long bitmapBytes = bitmapBytes(m_numAttribs);
+    RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+    try {
+      FileChannel channel = raf.getChannel();
+      MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+          HEADER_BYTES);
+      header.order(ByteOrder.LITTLE_ENDIAN);
+
+      m_reused = raf.length() == HEADER_BYTES + bitmapBytes + dataBytes
+          && header.getLong(0) == MAGIC
+          && header.getInt(8) == VERSION
+          && header.getInt(12) == m_numAttribs
+          && header.getLong(16) == m_fingerprint
+          && header.getInt(24) == BLOCK_ROWS;
+
+      if (!m_reused) {
+        // drop whatever was there, the new entries and checkpoints read as
+        // zero bytes
+        raf.setLength(0);
+        raf.setLength(HEADER_BYTES + bitmapBytes + dataBytes);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(0, MAGIC);
+        header.putInt(8, VERSION);
+        header.putInt(12, m_numAttribs);
+        header.putLong(16, m_fingerprint);
+        header.putInt(24, BLOCK_ROWS);
+        header.force();
+      }
+
+      m_blocks = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES,
+          bitmapBytes);
+      m_blocks.order(ByteOrder.LITTLE_ENDIAN);
+
+      int numSegments = (int) ((dataBytes + SEGMENT_BYTES - 1) / SEGMENT_BYTES);
+      m_segments = new MappedByteBuffer[numSegments];
+      for (int s = 0; s < numSegments; s++) {
+        long start = s * SEGMENT_BYTES;
+        long size = Math.min(SEGMENT_BYTES, dataBytes - start);
+        m_segments[s] = channel.map(FileChannel.MapMode.READ_WRITE,
+            HEADER_BYTES + bitmapBytes + start, size);
+        m_segments[s].order(ByteOrder.LITTLE_ENDIAN);
+      }
+    } finally {
+      // the mappings stay valid once the channel is closed
+      raf.close();
+    }
+  }
+
+  private static long position(int row, int col) {
+    return 4L * ((long) row * (row - 1) / 2 + col);
+  }
+
+  @Override
+  public float get(int row, int col) {
+    long pos = position(row, col);
+    int bits = m_segments[(int) (pos / SEGMENT_BYTES)]
+        .getInt((int) (pos % SEGMENT_BYTES));
+    return Float.intBitsToFloat(bits ^ UNCOMPUTED_BITS);
+  }
+
+  @Override
+  public void set(int row, int col, float value) {
+    long pos = position(row, col);
+    m_segments[(int) (pos / SEGMENT_BYTES)].putInt((int) (pos % SEGMENT_BYTES),
+        Float.floatToRawIntBits(value) ^ UNCOMPUTED_BITS);
+  }
+
+  @Override
+  public void flush() {
+    for (MappedByteBuffer segment : m_segments) {
+      segment.force();
+    }
+  }
+
+  private void readObject(ObjectInputStream in)
+      throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    map();
+  }
+}
@@ -0,0 +1,144 @@
+package attributeSelection;
+
+import weka.core.ContingencyTables;
+import weka.core.Utils;
+
+/**
+ * Recursive MDL splitting of a numeric attribute by the criterion of Fayyad
+ * and Irani, following Discretize.cutPointsForSubset with better encoding.
+ * The attribute is given as groups of values in ascending order, each group
+ * with the weighted class counts of its rows; candidate cut points are the
+ * midpoints between the largest value of a group and the smallest value of
+ * the next one. With one group per distinct value the cut points are those
+ * of Discretize; coarser groups (from a StreamingHistogram) leave out
+ * candidates, while the MDL cost still counts the values inside them as the
+ * groups report them.
+ *
+ * @author Suhel Hammoud (suhel.hammoud@gmail.com)
+ * @version $Revision: 00000 $
+ */
+class MdlCutter {
+
+  private final double[] m_lows;
+  private final double[] m_highs;
+  private final double[][] m_counts;
+  private final int[] m_distinct;
+  private final int m_numClasses;
+
+  /**
+   * @param lows       the smallest value of each group
+   * @param highs      the largest value of each group
+   * @param counts     the class counts of each group
+   * @param distinct   the number of distinct values of each group, null if
+   *                   every group is a single value
+   * @param numClasses the number of classes
+   */
+  MdlCutter(double[] lows, double[] highs, double[][] counts, int[] distinct,
+            int numClasses) {
+    m_lows = lows;
+    m_highs = highs;
+    m_counts = counts;
+    m_distinct = distinct;
+    m_numClasses = numClasses;
+  }
+
+  /**
+   * @return the cut points of all the groups in ascending order, null if
+   * there are none
+   */
+  double[] cutPoints() {
+    return cutPoints(0, m_counts.length);
+  }
+
+  private double[] cutPoints(int first, int lastPlusOne) {
+    if (lastPlusOne - first < 2) {
+      return null;
+    }
+
+    double[][] counts = new double[2][m_numClasses];
+    double numInstances = 0;
+    // the MDL cost counts the boundaries between all distinct values, also
+    // those inside a group
+    int numCutPoints = -1;
+    for (int i = first; i < lastPlusOne; i++) {
+      numCutPoints += m_distinct == null ? 1 : m_distinct[i];
+      for (int c = 0; c < m_numClasses; c++) {
+        numInstances += m_counts[i][c];
+        counts[1][c] += m_counts[i][c];
+      }
+    }
+    double[] priorCounts = counts[1].clone();
+    double priorEntropy = ContingencyTables.entropy(priorCounts);
+    double bestEntropy = priorEntropy;
+    double bestCutPoint = -1;
+    int bestIndex = -1;
+    double[][] bestCounts = new double[2][m_numClasses];
+
+    for (int i = first; i < lastPlusOne - 1; i++) {
+      for (int c = 0; c < m_numClasses; c++) {
+        counts[0][c] += m_counts[i][c];
+        counts[1][c] -= m_counts[i][c];
+      }
+      double currentCutPoint = (m_highs[i] + m_lows[i + 1]) / 2.0;
+      double currentEntropy = ContingencyTables.entropyConditionedOnRows(counts);
+      if (currentEntropy < bestEntropy) {
+        bestCutPoint = currentCutPoint;
+        bestEntropy = currentEntropy;
+        bestIndex = i;
+        System.arraycopy(counts[0], 0, bestCounts[0], 0, m_numClasses);
+        System.arraycopy(counts[1], 0, bestCounts[1], 0, m_numClasses);
+      }
+    }
+
+    double gain = priorEntropy - bestEntropy;
+    if (gain <= 0
+        || !fayyadAndIranisMDL(priorCounts, bestCounts, numInstances,
+        numCutPoints)) {
+      return null;
+    }
+
+    double[] left = cutPoints(first, bestIndex + 1);
+    double[] right = cutPoints(bestIndex + 1, lastPlusOne);
+    int numLeft = left == null ? 0 : left.length;
+    int numRight = right == null ? 0 : right.length;
+    double[] cutPoints = new double[numLeft + 1 + numRight];
+    if (left != null) {
+      System.arraycopy(left, 0, cutPoints, 0, numLeft);
+    }
+    cutPoints[numLeft] = bestCutPoint;
+    if (right != null) {
+      System.arraycopy(right, 0, cutPoints, numLeft + 1, numRight);
+    }
+    return cutPoints;
+  }
+
+  private static boolean fayyadAndIranisMDL(double[] priorCounts,
+                                            double[][] bestCounts,
+                                            double numInstances,
+                                            int numCutPoints) {
+    double priorEntropy = ContingencyTables.entropy(priorCounts);
+    double entropy = ContingencyTables.entropyConditionedOnRows(bestCounts);
+    double gain = priorEntropy - entropy;
+
+    int numClassesTotal = numPositive(priorCounts);
+    int numClassesLeft = numPositive(bestCounts[0]);
+    int numClassesRight = numPositive(bestCounts[1]);
+    double entropyLeft = ContingencyTables.entropy(bestCounts[0]);
+    double entropyRight = ContingencyTables.entropy(bestCounts[1]);
+
+    double delta = Utils.log2(Math.pow(3, numClassesTotal) - 2)
+        - ((numClassesTotal * priorEntropy) - (numClassesRight * entropyRight)
+        - (numClassesLeft * entropyLeft));
+    return gain > (Utils.log2(numCutPoints) + delta) / numInstances;
+  }
+
+  private static int numPositive(double[] counts) {
+    int n = 0;
+    for (double count : counts) {
+      if (count > 0) {
+        n++;
+      }
+    }
+    return n;
+  }
+}
@@ -0,0 +1,298 @@
+package attributeSelection;
+
+import java.util.Arrays;
+
+/**
+ * Correlation matrix that only keeps the attribute intercorrelations worth
+ * keeping: those above an epsilon, plus the K strongest partners of every
+ * attribute, by absolute value. Correlations with the class are always kept. Memory is
+ * O(n * K) plus the number of pairs above epsilon, instead of O(n^2).
+ * <p>
+ * The matrix is meant to be filled completely once (every pair offered
+ * through set), then sealed with complete(). Until then an absent pair reads
+ * as UNCOMPUTED, afterwards as 0, i.e. a dropped pair is treated as
+ * uncorrelated.
+ *
+ * @author Suhel Hammoud (suhel.hammoud@gmail.com)
+ * @version $Revision: 00000 $
+ */
+class SparseCorrelationMatrix implements CorrelationMatrix {
+
+  /**
+   * for serialization
+   */
+  static final long serialVersionUID = 5122480379071256745L;
+
+  /**
+   * Number of independently locked segments of the pair map
+   */
+  private static final int NUM_SEGMENTS = 64;
+
+  private final int m_numAttribs;
+  private final int m_classIndex;
+  private final int m_topK;
+  private final float m_epsilon;
+
+  /**
+   * Correlations with the class, by attribute
+   */
+  private final float[] m_classCorr;
+
+  /**
+   * Pairs kept, keyed by their position in the triangle
+   */
+  private final PairMap[] m_segments;
+
+  /**
+   * Per attribute min-heaps of the K strongest partners seen so far
+   */
+  private final float[][] m_topValues;
+  private final int[][] m_topPartners;
+  private final int[] m_topSizes;
+
+  /**
+   * Set once every pair has been offered, reads are lock free from then on
+   */
+  private volatile boolean m_complete;
+
+  /**
+   * @param numAttribs the number of attributes, including the class
+   * @param classIndex the index of the class attribute
+   * @param topK       number of strongest partners kept for every attribute
+   * @param epsilon    correlations above this are always kept
+   */
+  SparseCorrelationMatrix(int numAttribs, int classIndex, int topK,
+      double epsilon) {
+    m_numAttribs = numAttribs;
+    m_classIndex = classIndex;
+    m_topK = Math.max(0, topK);
+    m_epsilon = (float) epsilon;
+
+    m_classCorr = new float[numAttribs];
+    Arrays.fill(m_classCorr, UNCOMPUTED);
+
+    m_segments = new PairMap[NUM_SEGMENTS];
+    for (int s = 0; s < NUM_SEGMENTS; s++) {
+      m_segments[s] = new PairMap();
+    }
+
+    m_topValues = new float[numAttribs][m_topK];
+    m_topPartners = new int[numAttribs][m_topK];
+    m_topSizes = new int[numAttribs];
+  }
+
+  private static long key(int row, int col) {
+    return (long) row * (row - 1) / 2 + col;
+  }
+
+  private PairMap segment(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return m_segments[(int) (h >>> 58) & (NUM_SEGMENTS - 1)];
+  }
+
+  @Override
+  public float get(int row, int col) {
+    if (row == m_classIndex) {
+      return m_classCorr[col];
+    }
+    if (col == m_classIndex) {
+      return m_classCorr[row];
+    }
+
+    long key = key(row, col);
+    PairMap map = segment(key);
+    if (m_complete) {
+      float value = map.get(key);
+      return value == UNCOMPUTED ? 0.0f : value;
+    }
+    synchronized (map) {
+      return map.get(key);
+    }
+  }
+
+  @Override
+  public void set(int row, int col, float value) {
+    if (row == m_classIndex) {
+      m_classCorr[col] = value;
+      return;
+    }
+    if (col == m_classIndex) {
+      m_classCorr[row] = value;
+      return;
+    }
+    if (m_complete) {
+      // nothing is computed lazily once the matrix is sealed
+      return;
+    }
+
+    if (Math.abs(value) > m_epsilon) {
+      long key = key(row, col);
+      PairMap map = segment(key);
+      synchronized (map) {
+        map.put(key, value);
+      }
+    }
+    offerTop(row, col, value);
+    offerTop(col, row, value);
+  }
+
+  /**
+   * Offers partner to the heap of the strongest partners of att, strength
+   * being the absolute correlation
+   */
+  private void offerTop(int att, int partner, float value) {
+    if (m_topK == 0) {
+      return;
+    }
+    float[] values = m_topValues[att];
+    int[] partners = m_topPartners[att];
+    float strength = Math.abs(value);
+    synchronized (values) {
+      int size = m_topSizes[att];
+      int pos;
+      if (size < m_topK) {
+        // sift up from the end
+        pos = size++;
+        while (pos > 0 && Math.abs(values[(pos - 1) / 2]) > strength) {
+          values[pos] = values[(pos - 1) / 2];
+          partners[pos] = partners[(pos - 1) / 2];
+          pos = (pos - 1) / 2;
+        }
+        m_topSizes[att] = size;
+      } else if (strength > Math.abs(values[0])) {
+        // replace the weakest and sift down
+        pos = 0;
+        while (true) {
+          int child = 2 * pos + 1;
+          if (child >= size) {
+            break;
+          }
+          if (child + 1 < size
+              && Math.abs(values[child + 1]) < Math.abs(values[child])) {
+            child++;
+          }
+          if (Math.abs(values[child]) >= strength) {
+            break;
+          }
+          values[pos] = values[child];
+          partners[pos] = partners[child];
+          pos = child;
+        }
+      } else {
+        return;
+      }
+      values[pos] = value;
+      partners[pos] = partner;
+    }
+  }
+
+  /**
+   * Seals the matrix once every pair has been offered: the strongest partners
+   * of every attribute join the kept pairs, the heaps are released and any
+   * pair not kept reads as 0 from now on.
+   */
+  void complete() {
+    for (int att = 0; att < m_numAttribs; att++) {
+      for (int k = 0; k < m_topSizes[att]; k++) {
+        int partner = m_topPartners[att][k];
+        int row = Math.max(att, partner);
+        int col = Math.min(att, partner);
+        long key = key(row, col);
+        PairMap map = segment(key);
+        synchronized (map) {
+          map.put(key, m_topValues[att][k]);
+        }
+      }
+      m_topValues[att] = null;
+      m_topPartners[att] = null;
+    }
+    m_complete = true;
+  }
+
+  /**
+   * @return the number of attribute pairs kept, excluding the class
+   */
+  long numStored() {
+    long n = 0;
+    for (PairMap map : m_segments) {
+      synchronized (map) {
+        n += map.m_size;
+      }
+    }
+    return n;
+  }
+
+  @Override
+  public void flush() {
+  }
+
+  /**
+   * Open addressing map from pair keys to correlations, linear probing over
+   * primitive arrays.
+   */
+  private static class PairMap implements java.io.Serializable {
+
+    static final long serialVersionUID = -4206339711958770342L;
+
+    private static final long EMPTY = -1L;
+
+    private long[] m_keys = newKeys(16);
+    private float[] m_values = new float[16];
+    private int m_size;
+
+    private static long[] newKeys(int capacity) {
+      long[] keys = new long[capacity];
+      Arrays.fill(keys, EMPTY);
+      return keys;
+    }
+
+    private static int slot(long key, int mask) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    float get(long key) {
+      int mask = m_keys.length - 1;
+      for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+        if (m_keys[i] == key) {
+          return m_values[i];
+        }
+        if (m_keys[i] == EMPTY) {
+          return UNCOMPUTED;
+        }
+      }
+    }
+
+    void put(long key, float value) {
+      if (2 * (m_size + 1) > m_keys.length) {
+        grow();
+      }
+      int mask = m_keys.length - 1;
+      for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+        if (m_keys[i] == key) {
+          m_values[i] = value;
+          return;
+        }
+        if (m_keys[i] == EMPTY) {
+          m_keys[i] = key;
+          m_values[i] = value;
+          m_size++;
+          return;
+        }
+      }
+    }
+
+    private void grow() {
+      long[] keys = m_keys;
+      float[] values = m_values;
+      m_keys = newKeys(keys.length * 2);
+      m_values = new float[keys.length * 2];
+      m_size = 0;
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != EMPTY) {
+          put(keys[i], values[i]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package attributeSelection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Class histogram of a numeric attribute built one value at a time, in
+ * memory bounded by the number of bins whatever the number of rows. Every
+ * bin covers a range [low, high] of observed values and holds the weighted
+ * class counts of the rows in it. As long as there are at most maxBins
+ * distinct values each bin holds a single value and the histogram is exact.
+ * Past that, once there are 2 * maxBins bins, neighbouring bins of a single
+ * and the same class are merged, then if need be the bins separated by the
+ * smallest gaps, back down to maxBins.
+ * <p>
+ * The class counts and the total weight stay exact; merging only removes
+ * candidate cut points, and the ones left are still midpoints between
+ * adjacent observed values. Once merging has started the cut points are
+ * approximate: boundaries formed by rows arriving after a merge can be
+ * missed. Bins also count the distinct values merged into them, which the
+ * MDL cost depends on. A value falling strictly inside a bin after a merge
+ * cannot be told apart from the ones already in it and is not counted, so
+ * the count is that of the distinct values seen before the bin was formed:
+ * a lower bound, never more than the number of distinct values.
+ *
+ * @author Suhel Hammoud (suhel.hammoud@gmail.com)
+ * @version $Revision: 00000 $
+ * @see MdlCutter
+ */
+class StreamingHistogram {
+
+  private final int m_numClasses;
+  private final int m_maxBins;
+
+  /**
+   * Bins by their smallest value
+   */
+  private TreeMap<Double, Bin> m_bins = new TreeMap<Double, Bin>();
+
+  private boolean m_exact = true;
+
+  /**
+   * @param numClasses the number of classes
+   * @param maxBins    the number of bins kept once merging starts
+   */
+  StreamingHistogram(int numClasses, int maxBins) {
+    m_numClasses = numClasses;
+    m_maxBins = Math.max(1, maxBins);
+  }
+
+  /**
+   * @param value  a value, not missing
+   * @param cls    the class of its row
+   * @param weight the weight of its row
+   */
+  void add(double value, int cls, double weight) {
+    // -0.0 and 0.0 are the same value
+    value += 0.0;
+    Map.Entry<Double, Bin> floor = m_bins.floorEntry(value);
+    if (floor != null && value <= floor.getValue().m_high) {
+      Bin bin = floor.getValue();
+      bin.m_counts[cls] += weight;
+      return;
+    }
+    Bin bin = new Bin(value, m_numClasses);
+    bin.m_counts[cls] += weight;
+    m_bins.put(value, bin);
+    if (m_bins.size() > 2 * m_maxBins) {
+      compact();
+    }
+  }
+
+  /**
+   * @return whether every bin holds a single value, making the cut points
+   * those of the complete data
+   */
+  boolean isExact() {
+    return m_exact;
+  }
+
+  /**
+   * @return the number of bins
+   */
+  int numBins() {
+    return m_bins.size();
+  }
+
+  /**
+   * Merges neighbouring bins holding a single and the same class, then, if
+   * there are still more than maxBins bins, the bins separated by the
+   * smallest gaps. This is a heuristic: cuts are only ever best at class
+   * boundaries (Fayyad and Irani), but only among the rows seen so far. A
+   * later row of another class falling inside a merged bin cannot split it
+   * again, so the boundary it creates is lost and the cut points drift.
+   */
+  private void compact() {
+    ArrayList<Bin> pureMerged = new ArrayList<Bin>(m_bins.size());
+    Bin previous = null;
+    for (Bin bin : m_bins.values()) {
+      int cls = bin.pureClass();
+      if (previous != null && cls >= 0 && cls == previous.pureClass()) {
+        previous.absorb(bin);
+      } else {
+        pureMerged.add(bin);
+        previous = bin;
+      }
+    }
+    m_exact = false;
+    if (pureMerged.size() <= m_maxBins) {
+      setBins(pureMerged);
+      return;
+    }
+
+    Bin[] bins = pureMerged.toArray(new Bin[0]);
+    int merges = bins.length - m_maxBins;
+    double[] gaps = new double[bins.length - 1];
+    for (int i = 0; i < gaps.length; i++) {
+      gaps[i] = bins[i + 1].m_low - bins[i].m_high;
+    }
+    double[] sorted = gaps.clone();
+    Arrays.sort(sorted);
+    double threshold = sorted[merges - 1];
+    // gaps equal to the threshold are merged only as far as needed
+    int atThreshold = merges;
+    for (int i = 0; i < merges; i++) {
+      if (sorted[i] < threshold) {
+        atThreshold--;
+      }
+    }
+
+    ArrayList<Bin> merged = new ArrayList<Bin>(m_maxBins);
+    Bin current = bins[0];
+    for (int i = 0; i < gaps.length; i++) {
+      boolean merge = gaps[i] < threshold;
+      if (!merge && gaps[i] == threshold && atThreshold > 0) {
+        merge = true;
+        atThreshold--;
+      }
+      if (merge) {
+        current.absorb(bins[i + 1]);
+      } else {
+        merged.add(current);
+        current = bins[i + 1];
+      }
+    }
+    merged.add(current);
+    setBins(merged);
+  }
+
+  private void setBins(ArrayList<Bin> bins) {
+    m_bins = new TreeMap<Double, Bin>();
+    for (Bin bin : bins) {
+      m_bins.put(bin.m_low, bin);
+    }
+  }
+
+  /**
+   * @return the MDL cut points of the histogram, null if there are none
+   */
+  double[] cutPoints() {
+    int n = m_bins.size();
+    double[] lows = new double[n];
+    double[] highs = new double[n];
+    double[][] counts = new double[n][];
+    int[] distinct = new int[n];
+    int i = 0;
+    for (Bin bin : m_bins.values()) {
+      lows[i] = bin.m_low;
+      highs[i] = bin.m_high;
+      distinct[i] = bin.m_distinct;
+      counts[i++] = bin.m_counts;
+    }
+    return new MdlCutter(lows, highs, counts, distinct, m_numClasses)
+        .cutPoints();
+  }
+
+  private static class Bin {
+    private final double m_low;
+    private double m_high;
+    private final double[] m_counts;
+
+    /**
+     * Distinct values in the bin when it was formed. Values falling strictly
+     * inside its range afterwards are not counted, new or not, so this is a
+     * lower bound.
+     */
+    private int m_distinct = 1;
+
+    Bin(double value, int numClasses) {
+      m_low = value;
+      m_high = value;
+      m_counts = new double[numClasses];
+    }
+
+    /**
+     * @return the only class with a positive count, -1 if there are several
+     */
+    int pureClass() {
+      int cls = -1;
+      for (int c = 0; c < m_counts.length; c++) {
+        if (m_counts[c] > 0) {
+          if (cls >= 0) {
+            return -1;
+          }
+          cls = c;
+        }
+      }
+      return cls;
+    }
+
+    /**
+     * Merges the next bin into this one.
+     */
+    void absorb(Bin next) {
+      m_high = next.m_high;
+      m_distinct += next.m_distinct;
+      for (int c = 0; c < m_counts.length; c++) {
+        m_counts[c] += next.m_counts[c];
+      }
+    }
+  }
+}
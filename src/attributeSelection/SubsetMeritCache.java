@@ -0,0 +1,142 @@
+package attributeSelection;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded memo of subset merits, for searches that evaluate the same subset
+ * more than once. Subsets are keyed by a 64 bit hash of their words, the
+ * words themselves are kept to tell colliding subsets apart. The cache is
+ * split into independently locked segments, each evicting its least recently
+ * used subset once full.
+ *
+ * @author Suhel Hammoud (suhel.hammoud@gmail.com)
+ * @version $Revision: 00000 $
+ */
+class SubsetMeritCache {
+
+  /**
+   * Number of independently locked segments
+   */
+  private static final int NUM_SEGMENTS = 16;
+
+  private final Segment[] m_segments;
+
+  private final LongAdder m_hits = new LongAdder();
+  private final LongAdder m_misses = new LongAdder();
+
+  /**
+   * @param maxSize the number of subsets kept
+   */
+  SubsetMeritCache(int maxSize) {
+    int segmentSize = Math.max(1, maxSize / NUM_SEGMENTS);
+    m_segments = new Segment[NUM_SEGMENTS];
+    for (int s = 0; s < NUM_SEGMENTS; s++) {
+      m_segments[s] = new Segment(segmentSize);
+    }
+  }
+
+  private static long hash(long[] words) {
+    long h = 0x9E3779B97F4A7C15L;
+    for (long word : words) {
+      h = (h ^ word) * 0xBF58476D1CE4E5B9L;
+      h ^= h >>> 31;
+    }
+    return h;
+  }
+
+  private Segment segment(long hash) {
+    return m_segments[(int) (hash >>> 60) & (NUM_SEGMENTS - 1)];
+  }
+
+  /**
+   * @param subset the subset
+   * @return the cached merit of subset, NaN if it is not cached
+   */
+  double get(BitSet subset) {
+    long[] words = subset.toLongArray();
+    long hash = hash(words);
+    Segment segment = segment(hash);
+    CachedMerit entry;
+    synchronized (segment) {
+      entry = segment.get(hash);
+    }
+    if (entry != null && Arrays.equals(entry.m_words, words)) {
+      m_hits.increment();
+      return entry.m_merit;
+    }
+    m_misses.increment();
+    return Double.NaN;
+  }
+
+  /**
+   * Caches the merit of a subset, replacing any subset with the same hash.
+   *
+   * @param subset the subset
+   * @param merit  its merit
+   */
+  void put(BitSet subset, double merit) {
+    long[] words = subset.toLongArray();
+    long hash = hash(words);
+    Segment segment = segment(hash);
+    synchronized (segment) {
+      segment.put(hash, new CachedMerit(words, merit));
+    }
+  }
+
+  /**
+   * @return the number of lookups answered from the cache
+   */
+  long getHits() {
+    return m_hits.sum();
+  }
+
+  /**
+   * @return the number of lookups not answered from the cache
+   */
+  long getMisses() {
+    return m_misses.sum();
+  }
+
+  /**
+   * @return the fraction of lookups answered from the cache
+   */
+  double hitRate() {
+    long hits = getHits();
+    long total = hits + getMisses();
+    return total == 0 ? 0.0 : (double) hits / total;
+  }
+
+  private static class CachedMerit {
+    private final long[] m_words;
+    private final double m_merit;
+
+    CachedMerit(long[] words, double merit) {
+      m_words = words;
+      m_merit = merit;
+    }
+  }
+
+  /**
+   * Least recently used segment of the cache
+   */
+  private static class Segment extends LinkedHashMap<Long, CachedMerit> {
+
+    static final long serialVersionUID = -1316245064937614471L;
+
+    private final int m_maxSize;
+
+    Segment(int maxSize) {
+      super(16, 0.75f, true);
+      m_maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, CachedMerit> eldest) {
+      return size() > m_maxSize;
+    }
+  }
+}
@@ -318,19 +318,41 @@ public class Va extends ASEvaluation implements
     // can evaluator handle dataset?
     getCapabilities().testWithFail(data);
 
-    int classIndex = data.classIndex();
-    int numInstances = data.numInstances();
+    buildEvaluatorDiscretized(discretize(data));
+  }
 
+  /**
+   * Discretizes (or binarizes) the numeric attributes the way buildEvaluator
+   * does.
+   *
+   * @param data set of instances serving as training dataset
+   * @return the discretized instances
+   * @throws Exception if the data could not be filtered
+   */
+  public Instances discretize(Instances data) throws Exception {
     if (!m_Binarize) {
       Discretize disTransform = new Discretize();
       disTransform.setUseBetterEncoding(true);
       disTransform.setInputFormat(data);
-      data = Filter.useFilter(data, disTransform);
+      return Filter.useFilter(data, disTransform);
     } else {
       NumericToBinary binTransform = new NumericToBinary();
       binTransform.setInputFormat(data);
-      data = Filter.useFilter(data, binTransform);
+      return Filter.useFilter(data, binTransform);
     }
+  }
+
+  /**
+   * Builds the evaluator from instances already passed through discretize,
+   * for callers that share one discretized copy of the data with other
+   * evaluators.
+   *
+   * @param data the discretized training instances
+   * @throws Exception if the evaluator has not been generated successfully
+   */
+  public void buildEvaluatorDiscretized(Instances data) throws Exception {
+    int classIndex = data.classIndex();
+    int numInstances = data.numInstances();
     int numClasses = data.attribute(classIndex).numValues();
 
     // Reserve space and initialize counters
@@ -389,12 +411,56 @@ public class Va extends ASEvaluation implements
       }
     }
 
+    computeVa(counts, data, classIndex, numClasses);
+  }
+
+  /**
+   * Initializes the evaluator from a columnar dataset, without building
+   * Instances. Numeric attributes are discretized (or binarized) on the
+   * columns unless the dataset was prepared already, as read from a
+   * ColumnarCache.
+   *
+   * @param data the columnar dataset, with a nominal class set
+   * @throws Exception if the evaluator has not been generated successfully
+   */
+  public void buildEvaluator(ColumnarData data) throws Exception {
+    int classIndex = data.classIndex();
+    if (classIndex < 0 || !data.attribute(classIndex).isNominal()) {
+      throw new UnsupportedAttributeTypeException("Va needs a nominal class");
+    }
+    data = data.prepare(m_Binarize);
+    int numClasses = data.attribute(classIndex).numValues();
+
+    double[][][] counts = new double[data.numAttributes()][][];
+    for (int k = 0; k < data.numAttributes(); k++) {
+      if (k != classIndex) {
+        counts[k] = data.contingencyTable(k);
+      }
+    }
+
+    computeVa(counts, data.header(), classIndex, numClasses);
+  }
+
+  /**
+   * Computes info gain, chi-squared and Va of every attribute from its
+   * contingency table, distributing the counts of missing values first if
+   * required.
+   *
+   * @param counts     the contingency table of each attribute, with a last
+   *                   row and column for missing values
+   * @param header     the (nominal) attributes
+   * @param classIndex the index of the class
+   * @param numClasses the number of class values
+   */
+  private void computeVa(double[][][] counts, Instances header,
+                         int classIndex, int numClasses) {
+
     // distribute missing counts if required
     if (m_missing_merge) {
 
-      for (int k = 0; k < data.numAttributes(); k++) {
+      for (int k = 0; k < header.numAttributes(); k++) {
         if (k != classIndex) {
-          int numValues = data.attribute(k).numValues();
+          int numValues = header.attribute(k).numValues();
 
           // Compute marginals
           double[] rowSums = new double[numValues];
@@ -449,8 +515,8 @@ public class Va extends ASEvaluation implements
 
     /** ** IG ** **/
     // Compute info gains
-    double[] m_InfoGains = new double[data.numAttributes()];
-    for (int i = 0; i < data.numAttributes(); i++) {
+    double[] m_InfoGains = new double[header.numAttributes()];
+    for (int i = 0; i < header.numAttributes(); i++) {
       if (i != classIndex) {
         m_InfoGains[i] = (ContingencyTables.entropyOverColumns(counts[i]) - ContingencyTables
             .entropyConditionedOnRows(counts[i]));
@@ -459,8 +525,8 @@ public class Va extends ASEvaluation implements
 
     /*** Chi ***/
     // Compute chi-squared values
-    double[] m_ChiSquareds = new double[data.numAttributes()];
-    for (int i = 0; i < data.numAttributes(); i++) {
+    double[] m_ChiSquareds = new double[header.numAttributes()];
+    for (int i = 0; i < header.numAttributes(); i++) {
       if (i != classIndex) {
         m_ChiSquareds[i] = ContingencyTables.chiVal(
             ContingencyTables.reduceMatrix(counts[i]), false);
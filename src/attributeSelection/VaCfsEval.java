@@ -29,13 +29,18 @@ import weka.core.TechnicalInformation.Field;
 import weka.core.TechnicalInformation.Type;
 import weka.filters.Filter;
 import weka.filters.supervised.attribute.Discretize;
+import weka.filters.unsupervised.attribute.Remove;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAccumulator;
 
 /**
  * <!-- globalinfo-start --> VaCfsEval :<br/>
@@ -71,6 +76,11 @@ import java.util.concurrent.atomic.AtomicInteger;
  *  Va threshold.
  * </pre>
  * <pre>
+ * -R &lt;num&gt;
+ *  Drop the attributes whose Va rank relative to the best Va rank is below this before computing any correlation. 0 disables pre-pruning. (default 0)
+ * </pre>
+ *
+ * <pre>
  * -M
  *  Treat missing values as a separate value.
  * </pre>
@@ -86,13 +96,68 @@ import java.util.concurrent.atomic.AtomicInteger;
  * </pre>
  *
  * <pre>
+ * -O &lt;file&gt;
+ *  Keep the correlation matrix in the given memory-mapped file (or in a file named after the data within the given directory) instead of on the heap. A matrix computed earlier for the same data is reused, a precompute resumes from its last checkpoint. With a numeric class every build uses a scratch file of its own in the same directory, deleted on exit.
+ * </pre>
+ *
+ * <pre>
+ * -H
+ *  Store the attribute intercorrelations as 16 bit fixed point numbers, halving the memory of the correlation matrix. Merits are off by at most 3.8e-6 * (k - 1) relative for a subset of k attributes.
+ * </pre>
+ *
+ * <pre>
+ * -B &lt;int&gt;
+ *  Approximate redundancy: only attribute pairs proposed by MinHash locality sensitive hashing over this many bands get an exact correlation, all other pairs are taken as uncorrelated. Nominal class only. 0 disables hashing. (default 0)
+ * </pre>
+ *
+ * <pre>
+ * -U &lt;int&gt;
+ *  The number of MinHash values per band. Fewer rows per band or more bands propose more pairs. (default 4)
+ * </pre>
+ *
+ * <pre>
+ * -A &lt;num&gt;
+ *  Approximate correlations on a class stratified sample of the instances, doubled until the 95% confidence interval of each correlation is within this of its estimate. Nominal class only. 0 computes exact correlations. (default 0)
+ * </pre>
+ *
+ * <pre>
+ * -V &lt;int&gt;
+ *  The number of sampled instances approximate correlations start from. (default 10000)
+ * </pre>
+ *
+ * <pre>
+ * -C &lt;MB&gt;
+ *  Without -Z, cache at most this many megabytes of attribute intercorrelations instead of allocating the whole matrix. 0 disables the cache. (default 0)
+ * </pre>
+ *
+ * <pre>
+ * -S
+ *  Keep only the attribute intercorrelations above epsilon plus the top K partners of every attribute, treating the other pairs as uncorrelated. Implies precomputing the matrix.
+ * </pre>
+ *
+ * <pre>
+ * -K &lt;int&gt;
+ *  The number of strongest partners kept for every attribute in sparse mode. (default 10)
+ * </pre>
+ *
+ * <pre>
+ * -Y &lt;num&gt;
+ *  Intercorrelations above this are always kept in sparse mode. (default 0.05)
+ * </pre>
+ *
+ * <pre>
+ * -W &lt;int&gt;
+ *  The number of evaluated subsets whose merit is remembered, so a subset evaluated again costs a lookup. 0 disables the cache. (default 0)
+ * </pre>
+ *
+ * <pre>
  * -P &lt;int&gt;
  *  The size of the thread pool, for example, the number of cores in the CPU. (default 1)
  * </pre>
  *
  * <pre>
  * -E &lt;int&gt;
- *  The number of threads to use, which should be &gt;= size of thread pool. (default 1)
+ *  The minimum number of tasks the correlation matrix precompute is split into, which should be &gt;= size of thread pool. (default 1)
  * </pre>
  *
  * <pre>
@@ -151,8 +216,7 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
   /**
    * Holds the matrix of attribute correlations
    */
-  // private Matrix m_corr_matrix;
-  private float[][] m_corr_matrix;
+  private CorrelationMatrix m_corr_matrix;
   /**
    * Standard deviations of attributes (when using pearsons correlation)
    */
@@ -162,6 +226,36 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
    */
   private double m_c_Threshold;
 
+  /**
+   * The discretized attribute values stored column by column, a missing value
+   * is encoded as numValues(). Only built when the class is nominal, where all
+   * correlations are computed from contingency tables.
+   */
+  private int[][] m_columns;
+
+  /**
+   * The numeric attributes stored column by column, centred on their mean,
+   * with a missing value stored as 0 (the mean). Only built when the class is
+   * numeric, null for attributes that are not numeric.
+   */
+  private double[][] m_centred;
+
+  /**
+   * Sum of squares of every column of m_centred
+   */
+  private double[] m_sumSquares;
+
+  /**
+   * Approximate size of the per core cache that a tile of contingency tables,
+   * together with the block of instances being counted, should fit into
+   */
+  protected static final int TILE_CACHE_BYTES = 256 * 1024;
+
+  /**
+   * Number of correlation matrix rows counted together in one tile
+   */
+  protected static final int TILE_ROWS = 16;
+
   /**
    * Output debugging info
    */
@@ -170,7 +264,7 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
   /**
    * Number of entries in the correlation matrix
    */
-  protected int m_numEntries;
+  protected long m_numEntries;
 
   /**
    * Number of correlations actually computed
@@ -200,6 +294,112 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
    */
   protected String m_vaFormula = MA_VA_FORMULA.FIRUZ.name();
 
+  /**
+   * Attributes whose Va rank relative to the best one is below this are
+   * dropped before building the correlations, 0 to keep every attribute.
+   * Stricter than m_vaThreshold at the same value, which is relative to the
+   * best selected attribute instead.
+   */
+  protected double m_prePruneThreshold = 0.0;
+
+  /**
+   * Original index of every attribute kept by pre-pruning, null when nothing
+   * was dropped
+   */
+  private int[] m_keptAttributes = null;
+
+  /**
+   * Index among the kept attributes of every original attribute, -1 when
+   * dropped, null when nothing was dropped
+   */
+  private int[] m_keptIndex = null;
+
+
+  /**
+   * File backing the correlation matrix, empty to keep the matrix on the heap
+   */
+  protected String m_correlationMatrixFile = "";
+
+  /**
+   * Store the intercorrelations in 16 bits, see CompactCorrelationMatrix
+   */
+  protected boolean m_compactCorrelationMatrix = false;
+
+  /**
+   * Megabytes of intercorrelations cached in lazy mode, 0 to allocate the
+   * whole matrix
+   */
+  protected int m_correlationCacheSize = 0;
+
+  /**
+   * Number of subset merits remembered, 0 for none
+   */
+  protected int m_subsetCacheSize = 0;
+
+  /**
+   * Merits of the subsets evaluated so far, null when not remembered
+   */
+  private transient SubsetMeritCache m_meritCache = null;
+
+  /**
+   * Half width of the confidence interval approximate correlations are
+   * refined to, 0 for exact correlations
+   */
+  protected double m_sampleTolerance = 0.0;
+
+  /**
+   * Number of sampled instances approximate correlations start from
+   */
+  protected int m_sampleSize = 10000;
+
+  /**
+   * Two sided 95% normal quantile used for the approximate correlations
+   */
+  private static final double SAMPLE_Z = 1.959964;
+
+  /**
+   * Instance indexes in class stratified random order, any prefix is a
+   * stratified sample. Null for exact correlations.
+   */
+  private int[] m_sampleOrder = null;
+
+  /**
+   * Half width of the 95% confidence interval of every approximate
+   * correlation, null for exact correlations. Kept in the same kind of
+   * storage as the correlations, see errorMatrix().
+   */
+  private CorrelationMatrix m_corrError = null;
+
+  /**
+   * Largest half width computed since the evaluator was built
+   */
+  private DoubleAccumulator m_maxCorrError = null;
+
+  /**
+   * Number of MinHash bands proposing the attribute pairs to correlate, 0 to
+   * correlate every pair
+   */
+  protected int m_lshBands = 0;
+
+  /**
+   * Number of MinHash values per band
+   */
+  protected int m_lshRows = 4;
+
+  /**
+   * Keep only the strong intercorrelations, see SparseCorrelationMatrix
+   */
+  protected boolean m_sparse = false;
+
+  /**
+   * Number of strongest partners kept for every attribute in sparse mode
+   */
+  protected int m_sparseTopK = 10;
+
+  /**
+   * Intercorrelations above this are always kept in sparse mode
+   */
+  protected double m_sparseEpsilon = 0.05;
 
   /**
    * The size of the thread pool. Usually set equal to the number of CPUs or CPU
@@ -208,9 +408,37 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
   protected int m_poolSize = 1;
 
   /**
-   * Thread pool
+   * Thread pool, shared with every other evaluator using the same pool size
+   */
+  protected transient ForkJoinPool m_pool = null;
+
+  /**
+   * Long lived fork-join pools, by pool size
+   */
+  private static final Map<Integer, ForkJoinPool> POOLS =
+      new ConcurrentHashMap<Integer, ForkJoinPool>();
+
+  /**
+   * Returns the shared fork-join pool with the given parallelism, creating it
+   * on first use. Pool threads are daemons, so the pools never need to be
+   * shut down.
+   *
+   * @param poolSize the parallelism of the pool
+   * @return the pool
    */
-  protected transient ExecutorService m_pool = null;
+  protected static ForkJoinPool sharedPool(int poolSize) {
+    ForkJoinPool pool = POOLS.get(poolSize);
+    if (pool == null) {
+      synchronized (POOLS) {
+        pool = POOLS.get(poolSize);
+        if (pool == null) {
+          pool = new ForkJoinPool(poolSize);
+          POOLS.put(poolSize, pool);
+        }
+      }
+    }
+    return pool;
+  }
 
   /**
    * Returns a string describing this attribute evaluator
@@ -265,7 +493,7 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
    **/
   @Override
   public Enumeration<Option> listOptions() {
-    Vector<Option> newVector = new Vector<Option>(8);
+    Vector<Option> newVector = new Vector<Option>(19);
     newVector.addElement(new Option("\tTreat missing values as a separate "
         + "value.", "M", 0, "-M"));
     newVector.addElement(new Option(
@@ -275,7 +503,32 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
         "\t" + preComputeCorrelationMatrixTipText(), "Z", 0, "-Z"));
     newVector.addElement(new Option(
         "\t Va Threshold", "T", 0, "-T"));
+    newVector.addElement(new Option("\t" + prePruneThresholdTipText()
+        + " (default 0)", "R", 1, "-R <num>"));
 
+    newVector.addElement(new Option(
+        "\t" + correlationMatrixFileTipText(), "O", 1, "-O <file>"));
+    newVector.addElement(new Option(
+        "\t" + compactCorrelationMatrixTipText(), "H", 0, "-H"));
+    newVector.addElement(new Option(
+        "\t" + lshBandsTipText() + " (default 0)", "B", 1, "-B <int>"));
+    newVector.addElement(new Option(
+        "\t" + lshRowsTipText() + " (default 4)", "U", 1, "-U <int>"));
+    newVector.addElement(new Option("\t" + sampleToleranceTipText()
+        + " (default 0)", "A", 1, "-A <num>"));
+    newVector.addElement(new Option("\t" + sampleSizeTipText()
+        + " (default 10000)", "V", 1, "-V <int>"));
+    newVector.addElement(new Option("\t" + correlationCacheSizeTipText()
+        + " (default 0)", "C", 1, "-C <MB>"));
+    newVector.addElement(new Option(
+        "\t" + sparseTipText(), "S", 0, "-S"));
+    newVector.addElement(new Option(
+        "\t" + sparseTopKTipText() + " (default 10)", "K", 1, "-K <int>"));
+    newVector.addElement(new Option(
+        "\t" + sparseEpsilonTipText() + " (default 0.05)", "Y", 1,
+        "-Y <num>"));
+    newVector.addElement(new Option("\t" + subsetCacheSizeTipText()
+        + " (default 0)", "W", 1, "-W <int>"));
     newVector.addElement(new Option(
         "\t" + poolSizeTipText() + " (default 1)\n", "P", 1, "-P <int>"));
     newVector.addElement(new Option("\t" + numThreadsTipText()
@@ -301,6 +554,11 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
    * </pre>
    *
    * <pre>
+   * -R &lt;num&gt;
+   *  Drop the attributes whose Va rank relative to the best Va rank is below this before computing any correlation. 0 disables pre-pruning. (default 0)
+   * </pre>
+   *
+   * <pre>
    * -M
    *  Treat missing values as a separate value.
    * </pre>
@@ -316,13 +574,68 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
    * </pre>
    *
    * <pre>
+   * -O &lt;file&gt;
+   *  Keep the correlation matrix in the given memory-mapped file (or in a file named after the data within the given directory) instead of on the heap. A matrix computed earlier for the same data is reused, a precompute resumes from its last checkpoint. With a numeric class every build uses a scratch file of its own in the same directory, deleted on exit.
+   * </pre>
+   *
+   * <pre>
+   * -H
+   *  Store the attribute intercorrelations as 16 bit fixed point numbers, halving the memory of the correlation matrix. Merits are off by at most 3.8e-6 * (k - 1) relative for a subset of k attributes.
+   * </pre>
+   *
+   * <pre>
+   * -B &lt;int&gt;
+   *  Approximate redundancy: only attribute pairs proposed by MinHash locality sensitive hashing over this many bands get an exact correlation, all other pairs are taken as uncorrelated. Nominal class only. 0 disables hashing. (default 0)
+   * </pre>
+   *
+   * <pre>
+   * -U &lt;int&gt;
+   *  The number of MinHash values per band. Fewer rows per band or more bands propose more pairs. (default 4)
+   * </pre>
+   *
+   * <pre>
+   * -A &lt;num&gt;
+   *  Approximate correlations on a class stratified sample of the instances, doubled until the 95% confidence interval of each correlation is within this of its estimate. Nominal class only. 0 computes exact correlations. (default 0)
+   * </pre>
+   *
+   * <pre>
+   * -V &lt;int&gt;
+   *  The number of sampled instances approximate correlations start from. (default 10000)
+   * </pre>
+   *
+   * <pre>
+   * -C &lt;MB&gt;
+   *  Without -Z, cache at most this many megabytes of attribute intercorrelations instead of allocating the whole matrix. 0 disables the cache. (default 0)
+   * </pre>
+   *
+   * <pre>
+   * -S
+   *  Keep only the attribute intercorrelations above epsilon plus the top K partners of every attribute, treating the other pairs as uncorrelated. Implies precomputing the matrix.
+   * </pre>
+   *
+   * <pre>
+   * -K &lt;int&gt;
+   *  The number of strongest partners kept for every attribute in sparse mode. (default 10)
+   * </pre>
+   *
+   * <pre>
+   * -Y &lt;num&gt;
+   *  Intercorrelations above this are always kept in sparse mode. (default 0.05)
+   * </pre>
+   *
+   * <pre>
+   * -W &lt;int&gt;
+   *  The number of evaluated subsets whose merit is remembered, so a subset evaluated again costs a lookup. 0 disables the cache. (default 0)
+   * </pre>
+   *
+   * <pre>
    * -P &lt;int&gt;
    *  The size of the thread pool, for example, the number of cores in the CPU. (default 1)
    * </pre>
    *
    * <pre>
    * -E &lt;int&gt;
-   *  The number of threads to use, which should be &gt;= size of thread pool. (default 1)
+   *  The minimum number of tasks the correlation matrix precompute is split into, which should be &gt;= size of thread pool. (default 1)
    * </pre>
    *
    * <pre>
@@ -343,6 +656,48 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
     setLocallyPredictive(!Utils.getFlag('L', options));
     setPreComputeCorrelationMatrix(Utils.getFlag('Z', options));
 
+    setCorrelationMatrixFile(Utils.getOption('O', options));
+
+    setCompactCorrelationMatrix(Utils.getFlag('H', options));
+
+    String lshBands = Utils.getOption('B', options);
+    if (lshBands.length() != 0) {
+      setLshBands(Integer.parseInt(lshBands));
+    }
+    String lshRows = Utils.getOption('U', options);
+    if (lshRows.length() != 0) {
+      setLshRows(Integer.parseInt(lshRows));
+    }
+
+    String sampleTolerance = Utils.getOption('A', options);
+    if (sampleTolerance.length() != 0) {
+      setSampleTolerance(Double.parseDouble(sampleTolerance));
+    }
+    String sampleSize = Utils.getOption('V', options);
+    if (sampleSize.length() != 0) {
+      setSampleSize(Integer.parseInt(sampleSize));
+    }
+
+    String cacheSize = Utils.getOption('C', options);
+    if (cacheSize.length() != 0) {
+      setCorrelationCacheSize(Integer.parseInt(cacheSize));
+    }
+
+    setSparse(Utils.getFlag('S', options));
+    String topK = Utils.getOption('K', options);
+    if (topK.length() != 0) {
+      setSparseTopK(Integer.parseInt(topK));
+    }
+    String epsilon = Utils.getOption('Y', options);
+    if (epsilon.length() != 0) {
+      setSparseEpsilon(Double.parseDouble(epsilon));
+    }
+
+    String subsetCacheSize = Utils.getOption('W', options);
+    if (subsetCacheSize.length() != 0) {
+      setSubsetCacheSize(Integer.parseInt(subsetCacheSize));
+    }
+
     String PoolSize = Utils.getOption('P', options);
     if (PoolSize.length() != 0) {
       setPoolSize(Integer.parseInt(PoolSize));
@@ -359,6 +714,11 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
     String th = Utils.getOption('T', options);
     m_vaThreshold = Double.parseDouble(th);
 
+    String prePrune = Utils.getOption('R', options);
+    if (prePrune.length() != 0) {
+      setPrePruneThreshold(Double.parseDouble(prePrune));
+    }
+
     final String fIndex = Utils.getOption('F', options);
     m_vaFormula = MA_VA_FORMULA.valueOf(fIndex).name();
 
@@ -408,127 +768,497 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
   /**
    * @return a string to describe the option
    */
-  public String numThreadsTipText() {
-
-    return "The number of threads to use, which should be >= size of thread pool.";
+  public String prePruneThresholdTipText() {
+    return "Drop the attributes whose Va rank relative to the best Va rank "
+        + "is below this before computing any correlation, so the "
+        + "correlation matrix does not pay for them. The search still walks "
+        + "every original attribute, the dropped ones adding nothing to a "
+        + "merit. Pre-pruning is stricter than the Va threshold applied after "
+        + "the search: that one is relative to the best selected attribute, "
+        + "which never ranks above the best attribute overall, so pruning at "
+        + "the same value drops attributes the post-filter would keep, and it "
+        + "can change the subset the search selects. 0 disables pre-pruning.";
   }
 
   /**
-   * Gets the number of threads.
+   * Sets the relative Va rank below which attributes are dropped up front
+   *
+   * @param threshold the threshold, 0 to keep every attribute
    */
-  public int getNumThreads() {
-
-    return m_numThreads;
+  public void setPrePruneThreshold(double threshold) {
+    m_prePruneThreshold = Math.max(0.0, threshold);
   }
 
-  public void setVThreshold(double th) {
-    this.m_vaThreshold = th;
+  /**
+   * Gets the relative Va rank below which attributes are dropped up front
+   *
+   * @return the threshold, 0 if every attribute is kept
+   */
+  public double getPrePruneThreshold() {
+    return m_prePruneThreshold;
   }
 
-  public double getVThreshold() {
-    return m_vaThreshold;
+  /**
+   * @return a string to describe the option
+   */
+  public String correlationMatrixFileTipText() {
+    return "Keep the correlation matrix in the given memory-mapped file "
+        + "(or in a file named after the data within the given directory) "
+        + "instead of on the heap, for datasets too wide for the heap. A "
+        + "matrix computed earlier for the same data is reused, a precompute "
+        + "resumes from its last checkpoint. With a numeric class every "
+        + "build uses a scratch file of its own in the same directory, "
+        + "deleted on exit. Leave empty to keep the matrix on the heap.";
   }
 
-  public String vThresholdTipText() {
-    return "Va threshold ";
+  /**
+   * Sets the file backing the correlation matrix
+   *
+   * @param file the file, or an empty string for an on-heap matrix
+   */
+  public void setCorrelationMatrixFile(String file) {
+    m_correlationMatrixFile = file == null ? "" : file.trim();
   }
 
   /**
-   * Sets the number of threads
+   * Gets the file backing the correlation matrix
+   *
+   * @return the file, or an empty string for an on-heap matrix
    */
-  public void setNumThreads(int nT) {
-
-    m_numThreads = nT;
+  public String getCorrelationMatrixFile() {
+    return m_correlationMatrixFile;
   }
 
   /**
    * @return a string to describe the option
    */
-  public String poolSizeTipText() {
-
-    return "The size of the thread pool, for example, the number of cores in the CPU.";
+  public String compactCorrelationMatrixTipText() {
+    return "Store the attribute intercorrelations as 16 bit fixed point "
+        + "numbers, halving the memory of the correlation matrix. Merits are "
+        + "off by at most 3.8e-6 * (k - 1) relative for a subset of k "
+        + "attributes.";
   }
 
   /**
-   * Gets the number of threads.
+   * Sets whether the intercorrelations are stored in 16 bits
+   *
+   * @param compact true for a compact correlation matrix
    */
-  public int getPoolSize() {
-
-    return m_poolSize;
+  public void setCompactCorrelationMatrix(boolean compact) {
+    m_compactCorrelationMatrix = compact;
   }
 
   /**
-   * Sets the number of threads
+   * Gets whether the intercorrelations are stored in 16 bits
+   *
+   * @return true for a compact correlation matrix
    */
-  public void setPoolSize(int nT) {
-
-    m_poolSize = nT;
+  public boolean getCompactCorrelationMatrix() {
+    return m_compactCorrelationMatrix;
   }
 
   /**
-   * Returns the tip text for this property
-   *
-   * @return tip text for this property suitable for displaying in the
-   * explorer/experimenter gui
+   * @return a string to describe the option
    */
-  public String locallyPredictiveTipText() {
-    return "Identify locally predictive attributes. Iteratively adds "
-        + "attributes with the highest correlation with the class as long "
-        + "as there is not already an attribute in the subset that has a "
-        + "higher correlation with the attribute in question";
+  public String lshBandsTipText() {
+    return "Approximate redundancy: only attribute pairs proposed by MinHash "
+        + "locality sensitive hashing over this many bands get an exact "
+        + "correlation, all other pairs are taken as uncorrelated. A pair "
+        + "whose rows away from the most frequent value have Jaccard "
+        + "similarity s is proposed with probability 1 - (1 - s^r)^b for b "
+        + "bands of r rows. Nominal class only. 0 disables hashing.";
   }
 
   /**
-   * Include locally predictive attributes
+   * Sets the number of MinHash bands proposing the pairs to correlate
    *
-   * @param b true or false
+   * @param bands the number of bands, 0 to correlate every pair
    */
-  public void setLocallyPredictive(boolean b) {
-    m_locallyPredictive = b;
+  public void setLshBands(int bands) {
+    m_lshBands = Math.max(0, bands);
   }
 
   /**
-   * Return true if including locally predictive attributes
+   * Gets the number of MinHash bands proposing the pairs to correlate
    *
-   * @return true if locally predictive attributes are to be used
+   * @return the number of bands, 0 if every pair is correlated
    */
-  public boolean getLocallyPredictive() {
-    return m_locallyPredictive;
+  public int getLshBands() {
+    return m_lshBands;
   }
 
   /**
-   * Returns the tip text for this property
-   *
-   * @return tip text for this property suitable for displaying in the
-   * explorer/experimenter gui
+   * @return a string to describe the option
    */
-  public String missingSeparateTipText() {
-    return "Treat missing as a separate value. Otherwise, counts for missing "
-        + "values are distributed across other values in proportion to their "
-        + "frequency.";
+  public String lshRowsTipText() {
+    return "The number of MinHash values per band. Fewer rows per band or "
+        + "more bands propose more pairs.";
   }
 
   /**
-   * Treat missing as a separate value
+   * Sets the number of MinHash values per band
    *
-   * @param b true or false
+   * @param rows the number of values
    */
-  public void setMissingSeparate(boolean b) {
-    m_missingSeparate = b;
+  public void setLshRows(int rows) {
+    m_lshRows = Math.max(1, rows);
   }
 
   /**
-   * Return true is missing is treated as a separate value
+   * Gets the number of MinHash values per band
    *
-   * @return true if missing is to be treated as a separate value
+   * @return the number of values
    */
-  public boolean getMissingSeparate() {
-    return m_missingSeparate;
+  public int getLshRows() {
+    return m_lshRows;
   }
 
   /**
-   * Set whether to output debugging info
-   *
+   * @return a string to describe the option
+   */
+  public String sampleToleranceTipText() {
+    return "Approximate correlations on a class stratified sample of the "
+        + "instances, doubled until the 95% confidence interval of each "
+        + "correlation (delta method normal interval plus a Miller-Madow "
+        + "bias allowance) is within this of its estimate. Nominal class "
+        + "only. 0 computes exact correlations.";
+  }
+
+  /**
+   * Sets the half width of the confidence interval approximate correlations
+   * are refined to
+   *
+   * @param tolerance the half width, 0 for exact correlations
+   */
+  public void setSampleTolerance(double tolerance) {
+    m_sampleTolerance = Math.max(0.0, tolerance);
+  }
+
+  /**
+   * Gets the half width of the confidence interval approximate correlations
+   * are refined to
+   *
+   * @return the half width, 0 if correlations are exact
+   */
+  public double getSampleTolerance() {
+    return m_sampleTolerance;
+  }
+
+  /**
+   * @return a string to describe the option
+   */
+  public String sampleSizeTipText() {
+    return "The number of sampled instances approximate correlations start "
+        + "from.";
+  }
+
+  /**
+   * Sets the number of sampled instances approximate correlations start from
+   *
+   * @param size the number of instances
+   */
+  public void setSampleSize(int size) {
+    m_sampleSize = Math.max(1, size);
+  }
+
+  /**
+   * Gets the number of sampled instances approximate correlations start from
+   *
+   * @return the number of instances
+   */
+  public int getSampleSize() {
+    return m_sampleSize;
+  }
+
+  /**
+   * Half width of the 95% confidence interval of the correlation between two
+   * attributes, as computed so far. With a correlation matrix file (-O) the
+   * intervals are kept in a file next to it and reused with it.
+   *
+   * @param att1 an attribute index, after any pre-pruning
+   * @param att2 another attribute index, after any pre-pruning
+   * @return the half width, 0 if the correlation is exact, NaN if it has not
+   * been computed or its interval is unknown (a pair left out by MinHash
+   * banding, or a correlation reused without its interval file)
+   */
+  public double getCorrelationError(int att1, int att2) {
+    if (att1 == att2) {
+      return 0.0;
+    }
+    int larger = Math.max(att1, att2);
+    int smaller = Math.min(att1, att2);
+    float corr = m_corr_matrix.get(larger, smaller);
+    if (corr == CorrelationMatrix.UNCOMPUTED) {
+      return Double.NaN;
+    }
+    if (m_corrError == null) {
+      return 0.0;
+    }
+    float error = m_corrError.get(larger, smaller);
+    return error == CorrelationMatrix.UNCOMPUTED ? Double.NaN : error;
+  }
+
+  /**
+   * @return a string to describe the option
+   */
+  public String correlationCacheSizeTipText() {
+    return "Without precomputing, cache at most this many megabytes of "
+        + "attribute intercorrelations instead of allocating the whole "
+        + "matrix. Evicted correlations are recomputed when needed again. "
+        + "0 disables the cache.";
+  }
+
+  /**
+   * Sets the size of the correlation cache used in lazy mode
+   *
+   * @param megabytes the size in megabytes, 0 to allocate the whole matrix
+   */
+  public void setCorrelationCacheSize(int megabytes) {
+    m_correlationCacheSize = Math.max(0, megabytes);
+  }
+
+  /**
+   * Gets the size of the correlation cache used in lazy mode
+   *
+   * @return the size in megabytes, 0 if the whole matrix is allocated
+   */
+  public int getCorrelationCacheSize() {
+    return m_correlationCacheSize;
+  }
+
+  /**
+   * @return a string to describe the option
+   */
+  public String subsetCacheSizeTipText() {
+    return "The number of evaluated subsets whose merit is remembered, so a "
+        + "subset evaluated again, as searches that backtrack do, costs a "
+        + "lookup. The least recently used subsets are forgotten first. 0 "
+        + "disables the cache.";
+  }
+
+  /**
+   * Sets the number of subset merits remembered
+   *
+   * @param size the number of subsets, 0 to remember none
+   */
+  public void setSubsetCacheSize(int size) {
+    m_subsetCacheSize = Math.max(0, size);
+  }
+
+  /**
+   * Gets the number of subset merits remembered
+   *
+   * @return the number of subsets, 0 if none are remembered
+   */
+  public int getSubsetCacheSize() {
+    return m_subsetCacheSize;
+  }
+
+  /**
+   * @return a string to describe the option
+   */
+  public String sparseTipText() {
+    return "Keep only the attribute intercorrelations above epsilon plus the "
+        + "top K partners of every attribute, treating the other pairs as "
+        + "uncorrelated. Memory grows with the number of attributes times K "
+        + "rather than quadratically. Implies precomputing the matrix.";
+  }
+
+  /**
+   * Sets whether only the strong intercorrelations are kept
+   *
+   * @param sparse true for a sparse correlation matrix
+   */
+  public void setSparse(boolean sparse) {
+    m_sparse = sparse;
+  }
+
+  /**
+   * Gets whether only the strong intercorrelations are kept
+   *
+   * @return true for a sparse correlation matrix
+   */
+  public boolean getSparse() {
+    return m_sparse;
+  }
+
+  /**
+   * @return a string to describe the option
+   */
+  public String sparseTopKTipText() {
+    return "The number of strongest partners kept for every attribute in "
+        + "sparse mode.";
+  }
+
+  /**
+   * Sets the number of strongest partners kept for every attribute
+   *
+   * @param k the number of partners, 0 to keep only those above epsilon
+   */
+  public void setSparseTopK(int k) {
+    m_sparseTopK = Math.max(0, k);
+  }
+
+  /**
+   * Gets the number of strongest partners kept for every attribute
+   *
+   * @return the number of partners
+   */
+  public int getSparseTopK() {
+    return m_sparseTopK;
+  }
+
+  /**
+   * @return a string to describe the option
+   */
+  public String sparseEpsilonTipText() {
+    return "Intercorrelations above this are always kept in sparse mode.";
+  }
+
+  /**
+   * Sets the threshold above which intercorrelations are always kept
+   *
+   * @param epsilon the threshold
+   */
+  public void setSparseEpsilon(double epsilon) {
+    m_sparseEpsilon = epsilon;
+  }
+
+  /**
+   * Gets the threshold above which intercorrelations are always kept
+   *
+   * @return the threshold
+   */
+  public double getSparseEpsilon() {
+    return m_sparseEpsilon;
+  }
+
+  /**
+   * @return a string to describe the option
+   */
+  public String numThreadsTipText() {
+
+    return "The minimum number of tasks the correlation matrix precompute is "
+        + "split into, which should be >= size of thread pool. Tasks are "
+        + "balanced by estimated cost and stolen between pool threads.";
+  }
+
+  /**
+   * Gets the number of threads.
+   */
+  public int getNumThreads() {
+
+    return m_numThreads;
+  }
+
+  public void setVThreshold(double th) {
+    this.m_vaThreshold = th;
+  }
+
+  public double getVThreshold() {
+    return m_vaThreshold;
+  }
+
+  public String vThresholdTipText() {
+    return "Va threshold ";
+  }
+
+  /**
+   * Sets the number of threads
+   */
+  public void setNumThreads(int nT) {
+
+    m_numThreads = nT;
+  }
+
+  /**
+   * @return a string to describe the option
+   */
+  public String poolSizeTipText() {
+
+    return "The size of the thread pool, for example, the number of cores in the CPU.";
+  }
+
+  /**
+   * Gets the number of threads.
+   */
+  public int getPoolSize() {
+
+    return m_poolSize;
+  }
+
+  /**
+   * Sets the number of threads
+   */
+  public void setPoolSize(int nT) {
+
+    m_poolSize = nT;
+  }
+
+  /**
+   * Returns the tip text for this property
+   *
+   * @return tip text for this property suitable for displaying in the
+   * explorer/experimenter gui
+   */
+  public String locallyPredictiveTipText() {
+    return "Identify locally predictive attributes. Iteratively adds "
+        + "attributes with the highest correlation with the class as long "
+        + "as there is not already an attribute in the subset that has a "
+        + "higher correlation with the attribute in question";
+  }
+
+  /**
+   * Include locally predictive attributes
+   *
+   * @param b true or false
+   */
+  public void setLocallyPredictive(boolean b) {
+    m_locallyPredictive = b;
+  }
+
+  /**
+   * Return true if including locally predictive attributes
+   *
+   * @return true if locally predictive attributes are to be used
+   */
+  public boolean getLocallyPredictive() {
+    return m_locallyPredictive;
+  }
+
+  /**
+   * Returns the tip text for this property
+   *
+   * @return tip text for this property suitable for displaying in the
+   * explorer/experimenter gui
+   */
+  public String missingSeparateTipText() {
+    return "Treat missing as a separate value. Otherwise, counts for missing "
+        + "values are distributed across other values in proportion to their "
+        + "frequency.";
+  }
+
+  /**
+   * Treat missing as a separate value
+   *
+   * @param b true or false
+   */
+  public void setMissingSeparate(boolean b) {
+    m_missingSeparate = b;
+  }
+
+  /**
+   * Return true is missing is treated as a separate value
+   *
+   * @return true if missing is to be treated as a separate value
+   */
+  public boolean getMissingSeparate() {
+    return m_missingSeparate;
+  }
+
+  /**
+   * Set whether to output debugging info
+   *
    * @param d true if debugging info is to be output
    */
   public void setDebug(boolean d) {
@@ -579,6 +1309,42 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
     options.add("-T");
     options.add("" + m_vaThreshold);
 
+    options.add("-R");
+    options.add("" + getPrePruneThreshold());
+
+    if (getCorrelationMatrixFile().length() > 0) {
+      options.add("-O");
+      options.add(getCorrelationMatrixFile());
+    }
+
+    if (getCompactCorrelationMatrix()) {
+      options.add("-H");
+    }
+
+    options.add("-B");
+    options.add("" + getLshBands());
+    options.add("-U");
+    options.add("" + getLshRows());
+
+    options.add("-A");
+    options.add("" + getSampleTolerance());
+    options.add("-V");
+    options.add("" + getSampleSize());
+
+    options.add("-C");
+    options.add("" + getCorrelationCacheSize());
+
+    if (getSparse()) {
+      options.add("-S");
+    }
+    options.add("-K");
+    options.add("" + getSparseTopK());
+    options.add("-Y");
+    options.add("" + getSparseEpsilon());
+
+    options.add("-W");
+    options.add("" + getSubsetCacheSize());
+
     options.add("-P");
     options.add("" + getPoolSize());
 
@@ -627,6 +1393,10 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
    * <p>
    * CFS also discretises attributes (if necessary) and initializes the
    * correlation matrix.
+   * <p>
+   * With a nominal class and no missing class values Va and CFS discretize
+   * the same rows the same way, the data is then discretized once and the Va
+   * ranks are computed on the thread pool while CFS sets up its correlations.
    *
    * @param data set of instances serving as training dataset
    * @throws Exception if the evaluator has not been generated successfully
@@ -636,119 +1406,907 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
     Va va = new Va();
 //    va.setVaFormula(getVaFormula());
     va.m_vaFormula = m_vaFormula;
-    va.buildEvaluator(data);
-    vaRanks = va.getAttributesRanks();
 
-    buildEvaluatorLocal(data);
-  }
+    m_keptAttributes = null;
+    m_keptIndex = null;
 
-  public void buildEvaluatorLocal(Instances data) throws Exception {
+    if (data.classAttribute().isNumeric() || hasMissingClass(data)) {
+      va.buildEvaluator(data);
+      vaRanks = va.getAttributesRanks();
+      if (m_prePruneThreshold > 0.0) {
+        data = prePrune(data);
+      }
+      buildEvaluatorLocal(data);
+      return;
+    }
 
-    // can evaluator handle dataset?
+    va.getCapabilities().testWithFail(data);
     getCapabilities().testWithFail(data);
+    final Instances discretized = discretize(data);
+
+    if (m_prePruneThreshold > 0.0) {
+      // pruning needs the ranks before CFS can start
+      va.buildEvaluatorDiscretized(discretized);
+      vaRanks = va.getAttributesRanks();
+      buildEvaluatorDiscretized(prePrune(discretized));
+      return;
+    }
 
-    m_numEntries = 0;
-    m_numFilled = new AtomicInteger();
+    m_pool = sharedPool(Math.max(1, m_poolSize));
+    ForkJoinTask<Void> vaTask = m_pool.submit(() -> {
+      va.buildEvaluatorDiscretized(discretized);
+      return null;
+    });
+
+    // Va always runs to completion before this returns, whichever stage
+    // fails
+    Exception failure = null;
+    try {
+      buildEvaluatorDiscretized(discretized);
+    } catch (Exception e) {
+      failure = e;
+    }
+    try {
+      vaTask.get();
+    } catch (ExecutionException e) {
+      if (failure == null) {
+        failure = e.getCause() instanceof Exception ? (Exception) e.getCause()
+            : e;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    vaRanks = va.getAttributesRanks();
+  }
+
+  private static boolean hasMissingClass(Instances data) {
+    for (int i = 0; i < data.numInstances(); i++) {
+      if (data.instance(i).classIsMissing()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Discretizes the training instances for a nominal class
+   */
+  private Instances discretize(Instances data) throws Exception {
+    m_disTransform = new Discretize();
+    m_disTransform.setUseBetterEncoding(true);
+    m_disTransform.setInputFormat(data);
+    Instances result = Filter.useFilter(data, m_disTransform);
+    if (m_debug) {
+      System.err.println("Finished discretizing input dataset");
+    }
+    return result;
+  }
+
+  /**
+   * Drops the attributes whose Va rank relative to the best Va rank is below
+   * the pre-pruning threshold, and records how kept attributes map to the
+   * original ones.
+   *
+   * @param data the training instances
+   * @return the training instances restricted to the kept attributes and the
+   * class, or data itself when every attribute is kept
+   * @throws Exception if the attributes could not be removed
+   */
+  private Instances prePrune(Instances data) throws Exception {
+    int classIndex = data.classIndex();
+    double maxVrank = 0.0;
+    for (int i = 0; i < vaRanks.length; i++) {
+      if (i != classIndex) {
+        maxVrank = Math.max(maxVrank, vaRanks[i]);
+      }
+    }
+    if (maxVrank <= 0.0) {
+      return data;
+    }
+
+    int[] kept = new int[data.numAttributes()];
+    int numKept = 0;
+    for (int i = 0; i < data.numAttributes(); i++) {
+      if (i == classIndex || vaRanks[i] / maxVrank >= m_prePruneThreshold) {
+        kept[numKept++] = i;
+      }
+    }
+    if (numKept == data.numAttributes()) {
+      return data;
+    }
+
+    m_keptAttributes = Arrays.copyOf(kept, numKept);
+    m_keptIndex = new int[data.numAttributes()];
+    Arrays.fill(m_keptIndex, -1);
+    for (int i = 0; i < numKept; i++) {
+      m_keptIndex[m_keptAttributes[i]] = i;
+    }
+    if (m_debug) {
+      System.err.println("Pre-pruning kept " + (numKept - 1) + " of "
+          + (data.numAttributes() - 1) + " attributes");
+    }
+
+    Remove remove = new Remove();
+    remove.setAttributeIndicesArray(m_keptAttributes);
+    remove.setInvertSelection(true);
+    remove.setInputFormat(data);
+    return Filter.useFilter(data, remove);
+  }
+
+  /**
+   * @param subset attributes by original index
+   * @return the kept attributes of subset, by index among the kept attributes
+   */
+  private BitSet toKept(BitSet subset) {
+    BitSet kept = new BitSet(m_keptAttributes.length);
+    for (int i = subset.nextSetBit(0); i >= 0 && i < m_keptIndex.length;
+        i = subset.nextSetBit(i + 1)) {
+      if (m_keptIndex[i] >= 0) {
+        kept.set(m_keptIndex[i]);
+      }
+    }
+    return kept;
+  }
 
-    m_trainInstances = new Instances(data);
-    m_trainInstances.deleteWithMissingClass();
+  public void buildEvaluatorLocal(Instances data) throws Exception {
+
+    // can evaluator handle dataset?
+    getCapabilities().testWithFail(data);
+
+    Instances train = new Instances(data);
+    train.deleteWithMissingClass();
+    if (!train.classAttribute().isNumeric()) {
+      train = discretize(train);
+    }
+    buildEvaluatorDiscretized(train);
+  }
+
+  /**
+   * Builds CFS from training instances without missing class values, already
+   * discretized when the class is nominal.
+   */
+  private void buildEvaluatorDiscretized(Instances train) throws Exception {
+    m_numEntries = 0;
+    m_numFilled = new AtomicInteger();
+    m_meritCache = m_subsetCacheSize > 0
+        ? new SubsetMeritCache(m_subsetCacheSize) : null;
+
+    m_trainInstances = train;
     m_classIndex = m_trainInstances.classIndex();
     m_numAttribs = m_trainInstances.numAttributes();
     m_numInstances = m_trainInstances.numInstances();
     m_isNumeric = m_trainInstances.attribute(m_classIndex).isNumeric();
 
     if (!m_isNumeric) {
-      m_disTransform = new Discretize();
-      m_disTransform.setUseBetterEncoding(true);
-      m_disTransform.setInputFormat(m_trainInstances);
-      m_trainInstances = Filter.useFilter(m_trainInstances, m_disTransform);
-      if (m_debug) {
-        System.err.println("Finished discretizing input dataset");
-      }
+      encodeColumns();
+      m_centred = null;
+      m_sumSquares = null;
+    } else {
+      m_columns = null;
+      encodeNumericColumns();
+    }
+
+    if (m_sampleTolerance > 0.0 && m_columns != null
+        && m_sampleSize < m_numInstances) {
+      m_sampleOrder = stratifiedOrder();
+      m_maxCorrError = new DoubleAccumulator(Math::max, 0.0);
+    } else {
+      m_sampleOrder = null;
+      m_maxCorrError = null;
     }
 
     m_std_devs = new double[m_numAttribs];
-    m_corr_matrix = new float[m_numAttribs][];
     for (int i = 0; i < m_numAttribs; i++) {
-      m_corr_matrix[i] = new float[i + 1];
-      m_numEntries += (i + 1);
+      m_std_devs[i] = 1.0;
     }
-    m_numEntries -= m_numAttribs;
+    m_numEntries = (long) m_numAttribs * (m_numAttribs - 1) / 2;
+
+    boolean lsh = m_lshBands > 0 && !m_isNumeric;
+    if (lsh) {
+      // keeps whatever it is given, pairs never proposed read as 0
+      m_corr_matrix = new SparseCorrelationMatrix(m_numAttribs, m_classIndex,
+          0, -1.0);
+    } else if (m_sparse) {
+      m_corr_matrix = new SparseCorrelationMatrix(m_numAttribs, m_classIndex,
+          m_sparseTopK, m_sparseEpsilon);
+    } else if (m_correlationMatrixFile.length() > 0) {
+      // a numeric class scratch file is never reused, no need to hash
+      long fingerprint = m_isNumeric ? 0 : dataFingerprint();
+      MappedCorrelationMatrix mapped = new MappedCorrelationMatrix(
+          correlationMatrixFile(fingerprint), m_numAttribs, fingerprint);
+      if (m_debug && mapped.isReused()) {
+        System.err.println("Reusing the correlation matrix stored in "
+            + mapped.getFile());
+      }
+      m_corr_matrix = mapped;
+    } else if (m_correlationCacheSize > 0 && !m_preComputeCorrelationMatrix) {
+      m_corr_matrix = new CachedCorrelationMatrix(m_numAttribs, m_classIndex,
+          m_correlationCacheSize * 1024L * 1024L);
+    } else if (m_compactCorrelationMatrix) {
+      m_corr_matrix = new CompactCorrelationMatrix(m_numAttribs, m_classIndex);
+    } else {
+      m_corr_matrix = new HeapCorrelationMatrix(m_numAttribs);
+    }
+    m_corrError = m_sampleOrder == null ? null : errorMatrix();
+
+    // pairs left out of a sparse matrix are only known to be weak once every
+    // pair has been seen
+    if (lsh) {
+      m_pool = sharedPool(Math.max(1, m_poolSize));
+      correlateCandidates();
+    } else if (m_preComputeCorrelationMatrix || m_sparse) {
+      m_pool = sharedPool(Math.max(1, m_poolSize));
+
+      // cumulative estimated cost of the rows, a pair costs roughly the size
+      // of its contingency table
+      long[] rowCost = new long[m_numAttribs + 1];
+      long prefix = 0;
+      for (int i = 0; i < m_numAttribs; i++) {
+        rowCost[i + 1] = rowCost[i] + numValuesCost(i) * prefix;
+        prefix += numValuesCost(i);
+      }
+      long leafCost = rowCost[m_numAttribs]
+          / (8L * Math.max(1, Math.max(m_numThreads, m_poolSize)));
 
-    for (int i = 0; i < m_corr_matrix.length; i++) {
-      m_corr_matrix[i][i] = 1.0f;
-      m_std_devs[i] = 1.0;
+      if (m_corr_matrix instanceof MappedCorrelationMatrix) {
+        precomputeCheckpointed((MappedCorrelationMatrix) m_corr_matrix,
+            rowCost);
+      } else {
+        m_pool.invoke(new CorrelationTask(0, m_numAttribs, rowCost,
+            Math.max(1, leafCost)));
+      }
+      m_corr_matrix.flush();
+
+      if (m_sparse) {
+        SparseCorrelationMatrix sparse = (SparseCorrelationMatrix) m_corr_matrix;
+        sparse.complete();
+        if (m_debug) {
+          System.err.println("Intercorrelations kept: " + sparse.numStored()
+              + " of " + m_numEntries);
+        }
+      }
+
+      if (m_debug) {
+        System.err.println("Percentage of correlation matrix computed: "
+            + Utils.doubleToString(((double) m_numFilled.get()
+            / m_numEntries * 100.0), 2) + "%");
+      }
+    } else if (!m_isNumeric) {
+      // every search starts from the class correlations, the row before the
+      // class index is filled in tiles
+      correlateRows(m_classIndex, m_classIndex + 1);
+      for (int i = m_classIndex + 1; i < m_numAttribs; i++) {
+        correlation(i, m_classIndex);
+      }
     }
+  }
 
-    for (int i = 0; i < m_numAttribs; i++) {
-      for (int j = 0; j < m_corr_matrix[i].length - 1; j++) {
-        m_corr_matrix[i][j] = -999;
-      }
-    }
-
-    if (m_preComputeCorrelationMatrix && m_poolSize > 1) {
-      m_pool = Executors.newFixedThreadPool(m_poolSize);
-
-      Set<Future<Void>> results = new HashSet<Future<Void>>();
-      int numEntriesPerThread = (m_numEntries + m_numAttribs) / m_numThreads;
-      numEntriesPerThread = numEntriesPerThread < 1 ? 1 : numEntriesPerThread;
-
-      int startRow = 0;
-      int startCol = 0;
-
-      int count = 0;
-      for (int i = 0; i < m_corr_matrix.length; i++) {
-        for (int j = 0; j < m_corr_matrix[i].length; j++) {
-          count++;
-          if (count == numEntriesPerThread
-              || (i == m_corr_matrix.length - 1 && j == m_corr_matrix[i].length - 1)) {
-            final int sR = startRow;
-            final int sC = startCol;
-            final int eR = i;
-            final int eC = j;
-
-            startRow = i;
-            startCol = j;
-            count = 0;
-
-            Future<Void> future = m_pool.submit(new Callable<Void>() {
-              @Override
-              public Void call() throws Exception {
-                if (m_debug) {
-                  System.err
-                      .println("Starting correlation computation task...");
-                }
-                for (int i = sR; i <= eR; i++) {
-                  for (int j = (i == sR ? sC : 0); j < (i == eR ? eC
-                      : m_corr_matrix[i].length); j++) {
-                    if (m_corr_matrix[i][j] == -999) {
-                      float corr = correlate(i, j);
-                      m_corr_matrix[i][j] = corr;
-                    }
-                  }
-                }
-                if (m_debug) {
-                  System.err
-                      .println("Percentage of correlation matrix computed: "
-                          + Utils.doubleToString(((double) m_numFilled.get()
-                          / m_numEntries * 100.0), 2) + "%");
-                }
+  /**
+   * Storage for the confidence intervals of sampled correlations, of the same
+   * kind as m_corr_matrix so the intervals cost no more than the correlations
+   * do: a second file next to a memory-mapped matrix, reused along with it, a
+   * fixed point triangle next to a compact one, and a map of the pairs
+   * actually computed next to a sparse or cached matrix.
+   */
+  private CorrelationMatrix errorMatrix() throws IOException {
+    if (m_corr_matrix instanceof MappedCorrelationMatrix) {
+      MappedCorrelationMatrix mapped = (MappedCorrelationMatrix) m_corr_matrix;
+      return new MappedCorrelationMatrix(
+          new File(mapped.getFile().getPath() + ".err"), m_numAttribs,
+          mapped.getFingerprint());
+    }
+    if (m_corr_matrix instanceof CompactCorrelationMatrix) {
+      return new CompactCorrelationMatrix(m_numAttribs, m_classIndex);
+    }
+    if (m_corr_matrix instanceof HeapCorrelationMatrix) {
+      return new HeapCorrelationMatrix(m_numAttribs);
+    }
+    return new HashCorrelationMatrix();
+  }
+
+  /**
+   * The file backing a memory-mapped correlation matrix: the file given, or
+   * within the directory given a file named after the fingerprint of the
+   * data and the missing value setting, so that the matrices of different
+   * datasets live side by side.
+   * <p>
+   * With a numeric class the standard deviations are a by-product of
+   * computing the correlations, so stored correlations can never be reused.
+   * The matrix then lives in a new scratch file in the same directory,
+   * deleted on exit, which also keeps a build from truncating a file an
+   * earlier evaluator still has mapped.
+   *
+   * @param fingerprint the fingerprint of the data
+   * @return the file
+   * @throws IOException if a scratch file can't be created
+   */
+  private File correlationMatrixFile(long fingerprint) throws IOException {
+    File file = new File(m_correlationMatrixFile);
+    if (m_isNumeric) {
+      File dir = file.isDirectory() ? file
+          : file.getAbsoluteFile().getParentFile();
+      File scratch = File.createTempFile("vacfs-numeric-", ".matrix", dir);
+      scratch.deleteOnExit();
+      return scratch;
+    }
+    if (file.isDirectory()) {
+      file = new File(file, "vacfs-" + String.format("%016x", fingerprint)
+          + (m_missingSeparate ? "-ms" : "") + ".matrix");
+    }
+    return file;
+  }
+
+  /**
+   * Precomputes a memory-mapped correlation matrix block of rows by block of
+   * rows, checkpointing every block once it is on disk. Blocks finished by an
+   * earlier, possibly interrupted, run on the same data are skipped.
+   *
+   * @param mapped  the matrix
+   * @param rowCost cumulative estimated cost of the rows
+   * @throws IOException if a block can't be forced to disk
+   */
+  private void precomputeCheckpointed(MappedCorrelationMatrix mapped,
+      long[] rowCost) throws IOException {
+    int numBlocks = mapped.numBlocks();
+    if (m_debug && mapped.numBlocksDone() > 0) {
+      System.err.println("Resuming the precompute in " + mapped.getFile()
+          + ": " + mapped.numBlocksDone() + " of " + numBlocks
+          + " blocks done");
+    }
+
+    for (int b = 0; b < numBlocks; b++) {
+      if (mapped.isBlockDone(b)) {
+        continue;
+      }
+      int rowStart = b * MappedCorrelationMatrix.BLOCK_ROWS;
+      int rowEnd = Math.min(m_numAttribs,
+          rowStart + MappedCorrelationMatrix.BLOCK_ROWS);
+      long leafCost = (rowCost[rowEnd] - rowCost[rowStart])
+          / (8L * Math.max(1, Math.max(m_numThreads, m_poolSize)));
+      m_pool.invoke(new CorrelationTask(rowStart, rowEnd, rowCost,
+          Math.max(1, leafCost)));
+      if (m_corrError instanceof MappedCorrelationMatrix) {
+        // the intervals of a checkpointed block are not computed again
+        ((MappedCorrelationMatrix) m_corrError).flushRows(rowStart, rowEnd);
+      }
+      mapped.markBlockDone(b);
+    }
+  }
+
+  /**
+   * Fills the class correlations and the correlations of the attribute pairs
+   * proposed by MinHash banding, then seals the sparse matrix so every other
+   * pair reads as uncorrelated. Costs O(n * N * b * r) for the signatures
+   * plus the candidate pairs, instead of O(n^2 * N).
+   */
+  private void correlateCandidates() {
+    correlateRows(m_classIndex, m_classIndex + 1);
+    for (int i = m_classIndex + 1; i < m_numAttribs; i++) {
+      correlation(i, m_classIndex);
+    }
+
+    final long[] candidates = candidatePairs(minHashSignatures());
+
+    // cut the candidates, ordered by row, into cache sized chunks
+    int[] chunks = new int[16];
+    int numChunks = 0;
+    long bytes = 0;
+    for (int p = 0; p < candidates.length; p++) {
+      long pairBytes = tableBytes((int) (candidates[p] >>> 32),
+          (int) candidates[p]);
+      if (p == 0 || bytes + pairBytes > TILE_CACHE_BYTES / 2) {
+        if (numChunks == chunks.length) {
+          chunks = Arrays.copyOf(chunks, 2 * numChunks);
+        }
+        chunks[numChunks++] = p;
+        bytes = 0;
+      }
+      bytes += pairBytes;
+    }
+    final int[] chunkStart = Arrays.copyOf(chunks, numChunks + 1);
+    chunkStart[numChunks] = candidates.length;
+
+    m_pool.invoke(new RangeTask(0, numChunks, 1, (start, end) -> {
+      for (int c = start; c < end; c++) {
+        int numPairs = chunkStart[c + 1] - chunkStart[c];
+        int[] pairRow = new int[numPairs];
+        int[] pairCol = new int[numPairs];
+        for (int p = 0; p < numPairs; p++) {
+          pairRow[p] = (int) (candidates[chunkStart[c] + p] >>> 32);
+          pairCol[p] = (int) candidates[chunkStart[c] + p];
+        }
+        correlatePairs(pairRow, pairCol, numPairs,
+            Math.min(m_numAttribs, 2 * numPairs));
+      }
+    }));
+
+    ((SparseCorrelationMatrix) m_corr_matrix).complete();
+    if (m_debug) {
+      System.err.println("MinHash candidate pairs correlated: "
+          + candidates.length + " of " + m_numEntries);
+    }
+  }
+
+  /**
+   * MinHash signature of every attribute: for each of the b * r hash
+   * functions, the smallest hash of the rows where the attribute differs
+   * from its most frequent value (missing counting as a value). Attributes
+   * that never differ get no signature.
+   */
+  private int[][] minHashSignatures() {
+    final int numHashes = m_lshBands * m_lshRows;
+    final long[] seeds = new long[numHashes];
+    for (int h = 0; h < numHashes; h++) {
+      seeds[h] = mix64(0x9E3779B97F4A7C15L * (h + 1));
+    }
+    final int[][] signatures = new int[m_numAttribs][];
+
+    m_pool.invoke(new RangeTask(0, m_numAttribs, 64, (start, end) -> {
+      int[] mode = new int[end - start];
+      boolean[] varies = new boolean[end - start];
+      int[][] sig = new int[end - start][numHashes];
+      for (int a = start; a < end; a++) {
+        int[] freq = new int[m_trainInstances.attribute(a).numValues() + 1];
+        for (int code : m_columns[a]) {
+          freq[code]++;
+        }
+        for (int v = 1; v < freq.length; v++) {
+          if (freq[v] > freq[mode[a - start]]) {
+            mode[a - start] = v;
+          }
+        }
+        Arrays.fill(sig[a - start], Integer.MAX_VALUE);
+      }
 
-                return null;
+      // row hashes are computed a block at a time and shared by the range
+      int blockSize = 256;
+      int[] rowHashes = new int[blockSize * numHashes];
+      for (int k0 = 0; k0 < m_numInstances; k0 += blockSize) {
+        int k1 = Math.min(m_numInstances, k0 + blockSize);
+        for (int k = k0; k < k1; k++) {
+          for (int h = 0; h < numHashes; h++) {
+            rowHashes[(k - k0) * numHashes + h] =
+                (int) (mix64(k ^ seeds[h]) >>> 32);
+          }
+        }
+        for (int a = start; a < end; a++) {
+          if (a == m_classIndex) {
+            continue;
+          }
+          int[] column = m_columns[a];
+          int[] s = sig[a - start];
+          for (int k = k0; k < k1; k++) {
+            if (column[k] != mode[a - start]) {
+              varies[a - start] = true;
+              int base = (k - k0) * numHashes;
+              for (int h = 0; h < numHashes; h++) {
+                if (rowHashes[base + h] < s[h]) {
+                  s[h] = rowHashes[base + h];
+                }
               }
-            });
-            results.add(future);
+            }
+          }
+        }
+      }
+
+      for (int a = start; a < end; a++) {
+        if (varies[a - start]) {
+          signatures[a] = sig[a - start];
+        }
+      }
+    }));
+
+    return signatures;
+  }
+
+  /**
+   * Pairs of attributes that share all r values of at least one band of
+   * their signatures, as (larger &lt;&lt; 32 | smaller), sorted and without
+   * duplicates.
+   */
+  private long[] candidatePairs(int[][] signatures) {
+    int attBits = 64 - Long.numberOfLeadingZeros(m_numAttribs);
+    long attMask = (1L << attBits) - 1;
+
+    long[] keyed = new long[m_numAttribs];
+    long[] pairs = new long[1024];
+    int numPairs = 0;
+    for (int b = 0; b < m_lshBands; b++) {
+      int m = 0;
+      for (int a = 0; a < m_numAttribs; a++) {
+        if (signatures[a] != null) {
+          long h = b;
+          for (int r = 0; r < m_lshRows; r++) {
+            h = mix64(h ^ signatures[a][b * m_lshRows + r]);
+          }
+          // sorting on the band hash with the attribute in the low bits
+          // groups each bucket together
+          keyed[m++] = (h & ~attMask) | a;
+        }
+      }
+      Arrays.sort(keyed, 0, m);
+
+      for (int i = 0; i < m; ) {
+        int j = i + 1;
+        while (j < m && (keyed[j] & ~attMask) == (keyed[i] & ~attMask)) {
+          j++;
+        }
+        for (int x = i; x < j; x++) {
+          for (int y = x + 1; y < j; y++) {
+            // attribute order within a bucket follows the index
+            if (numPairs == pairs.length) {
+              pairs = Arrays.copyOf(pairs, 2 * numPairs);
+            }
+            pairs[numPairs++] = ((keyed[y] & attMask) << 32)
+                | (keyed[x] & attMask);
+          }
+        }
+        i = j;
+      }
+    }
+
+    Arrays.sort(pairs, 0, numPairs);
+    int unique = 0;
+    for (int p = 0; p < numPairs; p++) {
+      if (unique == 0 || pairs[p] != pairs[unique - 1]) {
+        pairs[unique++] = pairs[p];
+      }
+    }
+    return Arrays.copyOf(pairs, unique);
+  }
+
+  private static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Work on a range of indexes
+   */
+  private interface RangeBody {
+    void run(int start, int end);
+  }
+
+  /**
+   * Runs a body over [start, end), split in halves down to leafSize indexes
+   */
+  private static class RangeTask extends RecursiveAction {
+
+    /** for serialization */
+    private static final long serialVersionUID = 3166745396524015717L;
+
+    private final int m_start;
+    private final int m_end;
+    private final int m_leafSize;
+    private final transient RangeBody m_body;
+
+    RangeTask(int start, int end, int leafSize, RangeBody body) {
+      m_start = start;
+      m_end = end;
+      m_leafSize = leafSize;
+      m_body = body;
+    }
+
+    @Override
+    protected void compute() {
+      if (m_end - m_start <= m_leafSize) {
+        m_body.run(m_start, m_end);
+        return;
+      }
+      int split = (m_start + m_end) >>> 1;
+      invokeAll(new RangeTask(m_start, split, m_leafSize, m_body),
+          new RangeTask(split, m_end, m_leafSize, m_body));
+    }
+  }
+
+  /**
+   * Cost weight of an attribute in the precompute cost model
+   */
+  private long numValuesCost(int att) {
+    return Math.max(1, m_trainInstances.attribute(att).numValues()) + 1;
+  }
+
+  /**
+   * Fills a block of rows of the correlation matrix. Blocks whose estimated
+   * cost is above the leaf cost are split in two halves of equal cost and
+   * forked, idle pool threads steal the forked halves.
+   */
+  protected class CorrelationTask extends RecursiveAction {
+
+    /** for serialization */
+    private static final long serialVersionUID = -1907375094136468239L;
+
+    private final int m_rowStart;
+    private final int m_rowEnd;
+    private final long[] m_rowCost;
+    private final long m_leafCost;
+
+    protected CorrelationTask(int rowStart, int rowEnd, long[] rowCost,
+        long leafCost) {
+      m_rowStart = rowStart;
+      m_rowEnd = rowEnd;
+      m_rowCost = rowCost;
+      m_leafCost = leafCost;
+    }
+
+    @Override
+    protected void compute() {
+      long cost = m_rowCost[m_rowEnd] - m_rowCost[m_rowStart];
+      if (m_rowEnd - m_rowStart <= 1 || cost <= m_leafCost) {
+        correlateRows(m_rowStart, m_rowEnd);
+        return;
+      }
+
+      // first row at which half of the block's cost is reached
+      long half = m_rowCost[m_rowStart] + cost / 2;
+      int split = Arrays.binarySearch(m_rowCost, m_rowStart + 1, m_rowEnd,
+          half);
+      if (split < 0) {
+        split = -split - 1;
+      }
+      split = Math.max(m_rowStart + 1, Math.min(m_rowEnd - 1, split));
+
+      invokeAll(new CorrelationTask(m_rowStart, split, m_rowCost, m_leafCost),
+          new CorrelationTask(split, m_rowEnd, m_rowCost, m_leafCost));
+    }
+  }
+
+  /**
+   * Stores the discretized training data column by column, so that
+   * contingency tables can be filled without going through Instance objects.
+   */
+  private void encodeColumns() {
+    m_columns = new int[m_numAttribs][m_numInstances];
+    for (int k = 0; k < m_numInstances; k++) {
+      Instance inst = m_trainInstances.instance(k);
+      for (int a = 0; a < m_numAttribs; a++) {
+        m_columns[a][k] = inst.isMissing(a)
+            ? m_trainInstances.attribute(a).numValues()
+            : (int) inst.value(a);
+      }
+    }
+  }
+
+  /**
+   * Stores the numeric attributes column by column, centred on their mean,
+   * so that num_num is a plain loop over arrays instead of a scan through
+   * Instance objects plus a meanOrMode() scan for every pair. The means are
+   * taken in the same pass as the values are copied out.
+   */
+  private void encodeNumericColumns() {
+    m_centred = new double[m_numAttribs][];
+    m_sumSquares = new double[m_numAttribs];
+    double[] sums = new double[m_numAttribs];
+    double[] weights = new double[m_numAttribs];
+    for (int a = 0; a < m_numAttribs; a++) {
+      if (m_trainInstances.attribute(a).isNumeric()) {
+        m_centred[a] = new double[m_numInstances];
+      }
+    }
+
+    boolean[][] missing = new boolean[m_numAttribs][];
+    for (int a = 0; a < m_numAttribs; a++) {
+      if (m_centred[a] != null) {
+        missing[a] = new boolean[m_numInstances];
+      }
+    }
+    for (int k = 0; k < m_numInstances; k++) {
+      Instance inst = m_trainInstances.instance(k);
+      double weight = inst.weight();
+      for (int a = 0; a < m_numAttribs; a++) {
+        if (m_centred[a] == null) {
+          continue;
+        }
+        if (inst.isMissing(a)) {
+          missing[a][k] = true;
+        } else {
+          double value = inst.value(a);
+          m_centred[a][k] = value;
+          // same mean as Instances.meanOrMode()
+          sums[a] += weight * value;
+          weights[a] += weight;
+        }
+      }
+    }
+
+    for (int a = 0; a < m_numAttribs; a++) {
+      double[] column = m_centred[a];
+      if (column == null) {
+        continue;
+      }
+      double mean = weights[a] <= 0 ? 0.0 : sums[a] / weights[a];
+      boolean[] miss = missing[a];
+      double ss = 0.0;
+      for (int k = 0; k < m_numInstances; k++) {
+        double diff = miss[k] ? 0.0 : column[k] - mean;
+        column[k] = diff;
+        ss += diff * diff;
+      }
+      m_sumSquares[a] = ss;
+    }
+  }
+
+  /**
+   * A 64 bit fingerprint of the (discretized) training data and of the
+   * settings that change the correlations, used to recognise correlations
+   * that were computed and stored by an earlier run.
+   *
+   * @return the fingerprint
+   */
+  protected long dataFingerprint() {
+    long h = 0x6A09E667F3BCC909L;
+    h = mixFingerprint(h, m_missingSeparate ? 1 : 0);
+    h = mixFingerprint(h, m_classIndex);
+    h = mixFingerprint(h, m_numInstances);
+    if (m_sampleOrder != null) {
+      h = mixFingerprint(h, Double.doubleToLongBits(m_sampleTolerance));
+      h = mixFingerprint(h, m_sampleSize);
+    }
+
+    String header = m_trainInstances.stringFreeStructure().toString();
+    for (int c = 0; c < header.length(); c++) {
+      h = mixFingerprint(h, header.charAt(c));
+    }
+
+    for (int k = 0; k < m_numInstances; k++) {
+      Instance inst = m_trainInstances.instance(k);
+      for (int a = 0; a < m_numAttribs; a++) {
+        h = mixFingerprint(h, Double.doubleToLongBits(inst.value(a)));
+      }
+    }
+    return h;
+  }
+
+  private static long mixFingerprint(long h, long value) {
+    h ^= value;
+    h *= 0x9E3779B97F4A7C15L;
+    return h ^ (h >>> 29);
+  }
+
+  /**
+   * Size in bytes of the contingency table used to correlate two attributes.
+   */
+  private long tableBytes(int att1, int att2) {
+    return 8L * (m_trainInstances.attribute(att1).numValues() + 1)
+        * (m_trainInstances.attribute(att2).numValues() + 1);
+  }
+
+  /**
+   * Computes every still missing entry in rows rowStart (inclusive) to rowEnd
+   * (exclusive) of the correlation matrix. The rows are cut into tiles whose
+   * contingency tables fit in half of TILE_CACHE_BYTES, and each tile is
+   * filled by a single pass over the instances.
+   *
+   * @param rowStart the first row
+   * @param rowEnd the row after the last one
+   */
+  protected void correlateRows(int rowStart, int rowEnd) {
+    if (m_columns == null || m_sampleOrder != null) {
+      // numeric class, or sampled correlations that each take their own
+      // number of instances: the correlations do not come from tiles
+      for (int i = rowStart; i < rowEnd; i++) {
+        for (int j = 0; j < i; j++) {
+          if (m_corr_matrix.get(i, j) == CorrelationMatrix.UNCOMPUTED) {
+            m_corr_matrix.set(i, j, correlate(i, j));
+          }
+        }
+      }
+      return;
+    }
+
+    long budget = TILE_CACHE_BYTES / 2;
+    int tileRowStart = rowStart;
+    while (tileRowStart < rowEnd) {
+      int tileRowEnd = Math.min(rowEnd, tileRowStart + TILE_ROWS);
+
+      int colStart = 0;
+      while (colStart < tileRowEnd - 1) {
+        int colEnd = colStart;
+        long bytes = 0;
+        do {
+          for (int i = tileRowStart; i < tileRowEnd; i++) {
+            if (colEnd < i) {
+              bytes += tableBytes(i, colEnd);
+            }
           }
+          colEnd++;
+        } while (colEnd < tileRowEnd - 1 && bytes <= budget);
+        correlateTile(tileRowStart, tileRowEnd, colStart, colEnd);
+        colStart = colEnd;
+      }
+      tileRowStart = tileRowEnd;
+    }
+  }
+
+  /**
+   * Fills the entries (i, j) of the correlation matrix with rowStart &lt;= i
+   * &lt; rowEnd and colStart &lt;= j &lt; min(colEnd, i). The contingency
+   * tables of all pairs in the tile are built together while walking the
+   * instances block by block, so the columns of the tile are read once and
+   * stay in cache while they are counted against each other.
+   */
+  private void correlateTile(int rowStart, int rowEnd, int colStart,
+      int colEnd) {
+    int numPairs = 0;
+    for (int i = rowStart; i < rowEnd; i++) {
+      for (int j = colStart; j < Math.min(colEnd, i); j++) {
+        if (m_corr_matrix.get(i, j) == CorrelationMatrix.UNCOMPUTED) {
+          numPairs++;
+        }
+      }
+    }
+    if (numPairs == 0) {
+      return;
+    }
+
+    int[] pairRow = new int[numPairs];
+    int[] pairCol = new int[numPairs];
+    int p = 0;
+    for (int i = rowStart; i < rowEnd; i++) {
+      for (int j = colStart; j < Math.min(colEnd, i); j++) {
+        if (m_corr_matrix.get(i, j) == CorrelationMatrix.UNCOMPUTED) {
+          pairRow[p] = i;
+          pairCol[p] = j;
+          p++;
         }
       }
+    }
+
+    correlatePairs(pairRow, pairCol, numPairs,
+        (rowEnd - rowStart) + (colEnd - colStart));
+  }
+
+  /**
+   * Fills the given entries of the correlation matrix, counting all of their
+   * contingency tables in one walk over the instances. Sampled correlations
+   * each take their own number of instances and are computed one by one.
+   *
+   * @param pairRow  the larger attribute index of every pair
+   * @param pairCol  the smaller attribute index of every pair
+   * @param numPairs the number of pairs
+   * @param tileAtts the number of distinct attributes in the pairs
+   */
+  private void correlatePairs(int[] pairRow, int[] pairCol, int numPairs,
+      int tileAtts) {
+    int p;
+    if (m_sampleOrder != null) {
+      for (p = 0; p < numPairs; p++) {
+        m_corr_matrix.set(pairRow[p], pairCol[p],
+            correlate(pairRow[p], pairCol[p]));
+      }
+      return;
+    }
 
-      for (Future<Void> f : results) {
-        f.get();
+    double[][][] counts = new double[numPairs][][];
+    for (p = 0; p < numPairs; p++) {
+      counts[p] = new double[m_trainInstances.attribute(pairRow[p])
+          .numValues() + 1][m_trainInstances.attribute(pairCol[p])
+          .numValues() + 1];
+    }
+
+    // enough instances per block for the tile's columns to fill the other
+    // half of the cache
+    int blockSize = Math.max(64, TILE_CACHE_BYTES / 2 / (4 * tileAtts));
+    for (int k0 = 0; k0 < m_numInstances; k0 += blockSize) {
+      int k1 = Math.min(m_numInstances, k0 + blockSize);
+      for (p = 0; p < numPairs; p++) {
+        int[] ci = m_columns[pairRow[p]];
+        int[] cj = m_columns[pairCol[p]];
+        double[][] c = counts[p];
+        for (int k = k0; k < k1; k++) {
+          c[ci[k]][cj[k]]++;
+        }
       }
+    }
 
-      // shut down the thread pool
-      m_pool.shutdown();
+    for (p = 0; p < numPairs; p++) {
+      boolean flag = pairRow[p] == m_classIndex || pairCol[p] == m_classIndex;
+      m_corr_matrix.set(pairRow[p], pairCol[p],
+          (float) symmUncertCorr(counts[p], flag));
     }
+    m_numFilled.addAndGet(numPairs);
   }
 
   /**
@@ -760,10 +2318,30 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
    */
   @Override
   public double evaluateSubset(BitSet subset) throws Exception {
+    SubsetMeritCache cache = m_meritCache;
+    if (cache == null) {
+      return merit(subset);
+    }
+    double merit = cache.get(subset);
+    if (Double.isNaN(merit)) {
+      merit = merit(subset);
+      cache.put(subset, merit);
+    }
+    return merit;
+  }
+
+  /**
+   * Computes the merit of a subset of attributes from scratch
+   */
+  private double merit(BitSet subset) {
     double num = 0.0;
     double denom = 0.0;
     float corr;
     int larger, smaller;
+    if (m_keptIndex != null) {
+      // attributes dropped by pre-pruning contribute nothing
+      subset = toKept(subset);
+    }
     // do numerator
     for (int i = 0; i < m_numAttribs; i++) {
       if (i != m_classIndex) {
@@ -779,60 +2357,248 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
            * int larger = (i > m_classIndex ? i : m_classIndex); int smaller =
            * (i > m_classIndex ? m_classIndex : i);
            */
-          if (m_corr_matrix[larger][smaller] == -999) {
+          corr = m_corr_matrix.get(larger, smaller);
+          if (corr == CorrelationMatrix.UNCOMPUTED) {
             corr = correlate(i, m_classIndex);
-            m_corr_matrix[larger][smaller] = corr;
-            num += (m_std_devs[i] * corr);
-          } else {
-            num += (m_std_devs[i] * m_corr_matrix[larger][smaller]);
+            m_corr_matrix.set(larger, smaller, corr);
+          }
+          num += (m_std_devs[i] * corr);
+        }
+      }
+    }
+
+    // do denominator
+    for (int i = 0; i < m_numAttribs; i++) {
+      if (i != m_classIndex) {
+        if (subset.get(i)) {
+          denom += (1.0 * m_std_devs[i] * m_std_devs[i]);
+
+          for (int j = 0; j < i; j++) {
+            if (subset.get(j)) {
+              corr = m_corr_matrix.get(i, j);
+              if (corr == CorrelationMatrix.UNCOMPUTED) {
+                corr = correlate(i, j);
+                m_corr_matrix.set(i, j, corr);
+              }
+              denom += (2.0 * m_std_devs[i] * m_std_devs[j] * corr);
+            }
           }
         }
       }
     }
 
-    // do denominator
-    for (int i = 0; i < m_numAttribs; i++) {
-      if (i != m_classIndex) {
-        if (subset.get(i)) {
-          denom += (1.0 * m_std_devs[i] * m_std_devs[i]);
+    if (denom < 0.0) {
+      denom *= -1.0;
+    }
+
+    if (denom == 0.0) {
+      return (0.0);
+    }
+
+    double merit = (num / Math.sqrt(denom));
+
+    if (merit < 0.0) {
+      merit *= -1.0;
+    }
+
+    return merit;
+  }
+
+  /**
+   * Returns the correlation between two attributes, computing and storing it
+   * first if necessary.
+   */
+  private float correlation(int att1, int att2) {
+    int larger = att1 > att2 ? att1 : att2;
+    int smaller = att1 > att2 ? att2 : att1;
+    float corr = m_corr_matrix.get(larger, smaller);
+    if (corr == CorrelationMatrix.UNCOMPUTED) {
+      corr = correlate(att1, att2);
+      m_corr_matrix.set(larger, smaller, corr);
+    }
+    return corr;
+  }
+
+  /**
+   * Creates a running merit for the given subset of attributes. The subset is
+   * evaluated once in full, after that attributes can be added or removed,
+   * or the merit of the subset plus or minus one attribute queried, at a cost
+   * that is linear in the size of the subset.
+   *
+   * @param subset the starting subset of attributes
+   * @return a new state holding the CFS numerator and denominator of subset
+   */
+  public SubsetMerit newSubsetMerit(BitSet subset) {
+    return new SubsetMerit(subset);
+  }
+
+  /**
+   * The CFS numerator and denominator of one attribute subset, kept up to
+   * date as attributes are added and removed. Attributes are given by their
+   * index in the data passed to buildEvaluator, attributes dropped by
+   * pre-pruning are never members. Not thread safe, searches that evaluate in
+   * parallel should keep one state per thread.
+   */
+  public class SubsetMerit {
+
+    /** the attributes in the subset, the class is never a member */
+    private final BitSet m_members = new BitSet(m_numAttribs);
+
+    /** number of members */
+    private int m_size;
+
+    /** sum of std * class correlation over the members */
+    private double m_num;
+
+    /** sum of std_i * std_j * correlation(i, j) over all member pairs */
+    private double m_denom;
+
+    protected SubsetMerit(BitSet subset) {
+      for (int i = subset.nextSetBit(0); i >= 0;
+          i = subset.nextSetBit(i + 1)) {
+        add(i);
+      }
+    }
+
+    /**
+     * @return a copy of the current subset
+     */
+    public BitSet getSubset() {
+      return (BitSet) m_members.clone();
+    }
 
-          for (int j = 0; j < m_corr_matrix[i].length - 1; j++) {
-            if (subset.get(j)) {
-              if (m_corr_matrix[i][j] == -999) {
-                corr = correlate(i, j);
-                m_corr_matrix[i][j] = corr;
-                denom += (2.0 * m_std_devs[i] * m_std_devs[j] * corr);
-              } else {
-                denom +=
-                    (2.0 * m_std_devs[i] * m_std_devs[j] * m_corr_matrix[i][j]);
-              }
-            }
-          }
+    /**
+     * @return the number of attributes in the subset
+     */
+    public int size() {
+      return m_size;
+    }
+
+    /**
+     * @return the merit of the current subset, as returned by evaluateSubset
+     */
+    public double merit() {
+      return merit(m_num, m_denom);
+    }
+
+    /**
+     * @param att an attribute not in the subset
+     * @return the merit the subset would have with att added
+     */
+    public double meritWith(int att) {
+      if (!isCandidate(att) || m_members.get(att)) {
+        return merit();
+      }
+      return merit(m_num + numTerm(att), m_denom + denomTerm(att));
+    }
+
+    /**
+     * @param att an attribute in the subset
+     * @return the merit the subset would have with att removed
+     */
+    public double meritWithout(int att) {
+      if (!isCandidate(att) || !m_members.get(att)) {
+        return merit();
+      }
+      if (m_size == 1) {
+        return 0.0;
+      }
+      return merit(m_num - numTerm(att), m_denom - denomTerm(att));
+    }
+
+    /**
+     * Adds an attribute to the subset.
+     *
+     * @param att the attribute
+     */
+    public void add(int att) {
+      if (isCandidate(att) && !m_members.get(att)) {
+        m_num += numTerm(att);
+        m_denom += denomTerm(att);
+        m_members.set(att);
+        m_size++;
+      }
+    }
+
+    /**
+     * Removes an attribute from the subset.
+     *
+     * @param att the attribute
+     */
+    public void remove(int att) {
+      if (isCandidate(att) && m_members.get(att)) {
+        m_members.clear(att);
+        m_size--;
+        if (m_size == 0) {
+          // don't leave rounding residue behind in an empty subset
+          m_num = 0.0;
+          m_denom = 0.0;
+        } else {
+          m_num -= numTerm(att);
+          m_denom -= denomTerm(att);
         }
       }
     }
 
-    if (denom < 0.0) {
-      denom *= -1.0;
+    private boolean isCandidate(int att) {
+      int local = local(att);
+      return local >= 0 && local < m_numAttribs && local != m_classIndex;
     }
 
-    if (denom == 0.0) {
-      return (0.0);
+    /**
+     * index of att in the training instances, which differs from the
+     * original one after pre-pruning, -1 if att was pruned
+     */
+    private int local(int att) {
+      if (m_keptIndex == null) {
+        return att;
+      }
+      return att >= 0 && att < m_keptIndex.length ? m_keptIndex[att] : -1;
     }
 
-    double merit = (num / Math.sqrt(denom));
+    /** contribution of att to the numerator */
+    private double numTerm(int att) {
+      int a = local(att);
+      // also sets the standard deviation of att when the class is numeric
+      float corr = correlation(a, m_classIndex);
+      return m_std_devs[a] * corr;
+    }
 
-    if (merit < 0.0) {
-      merit *= -1.0;
+    /** contribution of att to the denominator, against the other members */
+    private double denomTerm(int att) {
+      int a = local(att);
+      double term = m_std_devs[a] * m_std_devs[a];
+      for (int j = m_members.nextSetBit(0); j >= 0;
+          j = m_members.nextSetBit(j + 1)) {
+        if (j != att) {
+          int b = local(j);
+          float corr = correlation(a, b);
+          term += 2.0 * m_std_devs[a] * m_std_devs[b] * corr;
+        }
+      }
+      return term;
     }
 
-    return merit;
+    private double merit(double num, double denom) {
+      if (denom < 0.0) {
+        denom *= -1.0;
+      }
+      if (denom == 0.0) {
+        return 0.0;
+      }
+      double merit = num / Math.sqrt(denom);
+      return merit < 0.0 ? -merit : merit;
+    }
   }
 
   private float correlate(int att1, int att2) {
 
     m_numFilled.addAndGet(1);
 
+    if (m_sampleOrder != null) {
+      return (float) sampledSymmUncertCorr(att1, att2);
+    }
+
     if (!m_isNumeric) {
       return (float) symmUncertCorr(att1, att2);
     }
@@ -855,16 +2621,197 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
     return (float) nom_nom(att1, att2);
   }
 
+  /**
+   * Instance indexes ordered so that every prefix is a class stratified
+   * sample: instances are shuffled within their class and each class is
+   * spread evenly over the order.
+   */
+  private int[] stratifiedOrder() {
+    int[] classColumn = m_columns[m_classIndex];
+    int numClasses = m_trainInstances.attribute(m_classIndex).numValues();
+    int[] classSizes = new int[numClasses];
+    for (int k = 0; k < m_numInstances; k++) {
+      classSizes[classColumn[k]]++;
+    }
+
+    // random rank of every instance within its class
+    Random random = new Random(1);
+    int[][] byClass = new int[numClasses][];
+    int[] filled = new int[numClasses];
+    for (int c = 0; c < numClasses; c++) {
+      byClass[c] = new int[classSizes[c]];
+    }
+    for (int k = 0; k < m_numInstances; k++) {
+      int c = classColumn[k];
+      byClass[c][filled[c]++] = k;
+    }
+    for (int c = 0; c < numClasses; c++) {
+      int[] rows = byClass[c];
+      for (int r = rows.length - 1; r > 0; r--) {
+        int swap = random.nextInt(r + 1);
+        int t = rows[r];
+        rows[r] = rows[swap];
+        rows[swap] = t;
+      }
+    }
+
+    // the r-th of the n rows of a class goes to slot (r + 0.5) * N / n, so
+    // that every prefix of the order holds each class in its proportion;
+    // the slots are laid out by counting, a class after the other within one
+    int[] start = new int[m_numInstances + 1];
+    for (int c = 0; c < numClasses; c++) {
+      for (int r = 0; r < classSizes[c]; r++) {
+        start[slot(r, classSizes[c]) + 1]++;
+      }
+    }
+    for (int k = 0; k < m_numInstances; k++) {
+      start[k + 1] += start[k];
+    }
+    int[] result = new int[m_numInstances];
+    for (int c = 0; c < numClasses; c++) {
+      int[] rows = byClass[c];
+      for (int r = 0; r < rows.length; r++) {
+        result[start[slot(r, rows.length)]++] = rows[r];
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the slot of the r-th of the n rows of a class in the stratified
+   * order, (r + 0.5) * N / n rounded down
+   */
+  private int slot(int r, int n) {
+    return (int) ((2L * r + 1) * m_numInstances / (2L * n));
+  }
+
+  /**
+   * Symmetrical uncertainty estimated on a growing stratified sample: the
+   * sample starts at m_sampleSize instances and doubles until the 95%
+   * confidence interval is within m_sampleTolerance, or the sample is the
+   * whole data. The interval is stored in m_corrError. Each pair is refined
+   * against the tolerance on its own, whatever its weight in the merits the
+   * search compares.
+   */
+  private double sampledSymmUncertCorr(int att1, int att2) {
+    boolean flag = att1 == m_classIndex || att2 == m_classIndex;
+    int[] ci = m_columns[att1];
+    int[] cj = m_columns[att2];
+    int ni = m_trainInstances.attribute(att1).numValues() + 1;
+    int nj = m_trainInstances.attribute(att2).numValues() + 1;
+    double[][] counts = new double[ni][nj];
+
+    int m = 0;
+    int target = Math.min(m_numInstances, m_sampleSize);
+    while (true) {
+      for (; m < target; m++) {
+        int k = m_sampleOrder[m];
+        counts[ci[k]][cj[k]]++;
+      }
+
+      double error = m < m_numInstances ? symmUncertError(counts, m) : 0.0;
+      if (error <= m_sampleTolerance || m >= m_numInstances) {
+        // scaled up to the data size, the missing value handling then sees
+        // the same totals as with the whole data
+        double scale = (double) m_numInstances / m;
+        double[][] scaled = new double[ni][nj];
+        for (int i = 0; i < ni; i++) {
+          for (int j = 0; j < nj; j++) {
+            scaled[i][j] = counts[i][j] * scale;
+          }
+        }
+        m_corrError.set(Math.max(att1, att2), Math.min(att1, att2),
+            (float) error);
+        m_maxCorrError.accumulate(error);
+        return symmUncertCorr(scaled, flag);
+      }
+      target = (int) Math.min(m_numInstances, 2L * m);
+    }
+  }
+
+  /**
+   * Half width of the 95% confidence interval of the symmetrical uncertainty
+   * 2 * (Hx + Hy - Hxy) / (Hx + Hy) estimated from m sampled instances. The
+   * variance comes from the delta method, the influence of an instance with
+   * values (x, y) being 2 * ((a_x + b_y - c_xy) * S - I * (a_x + b_y)) / S^2
+   * with a_x = -ln p_x - Hx, b_y = -ln p_y - Hy, c_xy = -ln p_xy - Hxy,
+   * S = Hx + Hy and I = S - Hxy, corrected for sampling without replacement.
+   * The Miller-Madow bias (K - 1) / 2m of each entropy, with K occupied
+   * cells, is propagated the same way and added.
+   */
+  private double symmUncertError(double[][] counts, int m) {
+    int ni = counts.length;
+    int nj = counts[0].length;
+    double[] px = new double[ni];
+    double[] py = new double[nj];
+    int kx = 0, ky = 0, kxy = 0;
+    double hxy = 0.0;
+    for (int i = 0; i < ni; i++) {
+      for (int j = 0; j < nj; j++) {
+        if (counts[i][j] > 0) {
+          double p = counts[i][j] / m;
+          px[i] += p;
+          py[j] += p;
+          hxy -= p * Math.log(p);
+          kxy++;
+        }
+      }
+    }
+    double hx = 0.0, hy = 0.0;
+    for (int i = 0; i < ni; i++) {
+      if (px[i] > 0) {
+        hx -= px[i] * Math.log(px[i]);
+        kx++;
+      }
+    }
+    for (int j = 0; j < nj; j++) {
+      if (py[j] > 0) {
+        hy -= py[j] * Math.log(py[j]);
+        ky++;
+      }
+    }
+
+    double sum = hx + hy;
+    if (sum <= 0.0) {
+      return 0.0;
+    }
+    double info = sum - hxy;
+
+    double variance = 0.0;
+    for (int i = 0; i < ni; i++) {
+      if (px[i] == 0) {
+        continue;
+      }
+      double a = -Math.log(px[i]) - hx;
+      for (int j = 0; j < nj; j++) {
+        if (counts[i][j] > 0) {
+          double p = counts[i][j] / m;
+          double b = -Math.log(py[j]) - hy;
+          double c = -Math.log(p) - hxy;
+          double phi = 2.0 * ((a + b - c) * sum - info * (a + b))
+              / (sum * sum);
+          variance += p * phi * phi;
+        }
+      }
+    }
+    double finite = 1.0 - (double) m / m_numInstances;
+    variance *= finite / m;
+
+    double bx = (kx - 1) / (2.0 * m);
+    double by = (ky - 1) / (2.0 * m);
+    double bxy = (kxy - 1) / (2.0 * m);
+    double bias = Math.abs(2.0 * ((bx + by - bxy) * sum - info * (bx + by))
+        / (sum * sum)) * finite;
+
+    return SAMPLE_Z * Math.sqrt(variance) + bias;
+  }
+
   private double symmUncertCorr(int att1, int att2) {
-    int i, j, ii, jj;
+    int i, ii, jj;
     int ni, nj;
-    double sum = 0.0;
-    double sumi[], sumj[];
     double counts[][];
     Instance inst;
-    double corr_measure;
     boolean flag = false;
-    double temp = 0.0;
 
     if (att1 == m_classIndex || att2 == m_classIndex) {
       flag = true;
@@ -873,37 +2820,55 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
     ni = m_trainInstances.attribute(att1).numValues() + 1;
     nj = m_trainInstances.attribute(att2).numValues() + 1;
     counts = new double[ni][nj];
-    sumi = new double[ni];
-    sumj = new double[nj];
-
-    for (i = 0; i < ni; i++) {
-      sumi[i] = 0.0;
 
-      for (j = 0; j < nj; j++) {
-        sumj[j] = 0.0;
-        counts[i][j] = 0.0;
+    // Fill the contingency table
+    if (m_columns != null) {
+      int[] ci = m_columns[att1];
+      int[] cj = m_columns[att2];
+      for (i = 0; i < m_numInstances; i++) {
+        counts[ci[i]][cj[i]]++;
       }
-    }
+    } else {
+      for (i = 0; i < m_numInstances; i++) {
+        inst = m_trainInstances.instance(i);
 
-    // Fill the contingency table
-    for (i = 0; i < m_numInstances; i++) {
-      inst = m_trainInstances.instance(i);
+        if (inst.isMissing(att1)) {
+          ii = ni - 1;
+        } else {
+          ii = (int) inst.value(att1);
+        }
 
-      if (inst.isMissing(att1)) {
-        ii = ni - 1;
-      } else {
-        ii = (int) inst.value(att1);
-      }
+        if (inst.isMissing(att2)) {
+          jj = nj - 1;
+        } else {
+          jj = (int) inst.value(att2);
+        }
 
-      if (inst.isMissing(att2)) {
-        jj = nj - 1;
-      } else {
-        jj = (int) inst.value(att2);
+        counts[ii][jj]++;
       }
-
-      counts[ii][jj]++;
     }
 
+    return symmUncertCorr(counts, flag);
+  }
+
+  /**
+   * Symmetrical uncertainty of a filled contingency table, the last row and
+   * column hold the counts for missing values.
+   *
+   * @param counts the contingency table, modified in place
+   * @param flag true if one of the two attributes is the class
+   * @return the correlation
+   */
+  private double symmUncertCorr(double[][] counts, boolean flag) {
+    int i, j;
+    int ni = counts.length;
+    int nj = counts[0].length;
+    double sum = 0.0;
+    double sumi[] = new double[ni];
+    double sumj[] = new double[nj];
+    double corr_measure;
+    double temp = 0.0;
+
     // get the row totals
     for (i = 0; i < ni; i++) {
       sumi[i] = 0.0;
@@ -1008,16 +2973,39 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
     int i;
     Instance inst;
     double r, diff1, diff2, num = 0.0, sx = 0.0, sy = 0.0;
-    double mx = m_trainInstances.meanOrMode(m_trainInstances.attribute(att1));
-    double my = m_trainInstances.meanOrMode(m_trainInstances.attribute(att2));
 
-    for (i = 0; i < m_numInstances; i++) {
-      inst = m_trainInstances.instance(i);
-      diff1 = (inst.isMissing(att1)) ? 0.0 : (inst.value(att1) - mx);
-      diff2 = (inst.isMissing(att2)) ? 0.0 : (inst.value(att2) - my);
-      num += (diff1 * diff2);
-      sx += (diff1 * diff1);
-      sy += (diff2 * diff2);
+    if (m_centred != null && m_centred[att1] != null
+        && m_centred[att2] != null) {
+      double[] x = m_centred[att1];
+      double[] y = m_centred[att2];
+      // four independent sums, so consecutive multiply-adds do not wait on
+      // each other
+      double n0 = 0.0, n1 = 0.0, n2 = 0.0, n3 = 0.0;
+      int end = m_numInstances & ~3;
+      for (i = 0; i < end; i += 4) {
+        n0 += x[i] * y[i];
+        n1 += x[i + 1] * y[i + 1];
+        n2 += x[i + 2] * y[i + 2];
+        n3 += x[i + 3] * y[i + 3];
+      }
+      for (; i < m_numInstances; i++) {
+        n0 += x[i] * y[i];
+      }
+      num = (n0 + n1) + (n2 + n3);
+      sx = m_sumSquares[att1];
+      sy = m_sumSquares[att2];
+    } else {
+      double mx = m_trainInstances.meanOrMode(m_trainInstances.attribute(att1));
+      double my = m_trainInstances.meanOrMode(m_trainInstances.attribute(att2));
+
+      for (i = 0; i < m_numInstances; i++) {
+        inst = m_trainInstances.instance(i);
+        diff1 = (inst.isMissing(att1)) ? 0.0 : (inst.value(att1) - mx);
+        diff2 = (inst.isMissing(att2)) ? 0.0 : (inst.value(att2) - my);
+        num += (diff1 * diff2);
+        sx += (diff1 * diff1);
+        sy += (diff2 * diff2);
+      }
     }
 
     if (sx != 0.0) {
@@ -1044,86 +3032,100 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
     }
   }
 
+  /**
+   * Correlation between a nominal attribute (att1) and a numeric attribute
+   * (att2). The per value frequencies, sums and sums of squares are gathered
+   * in a single pass over the data, the centred moments that the original
+   * formulation accumulated row by row are then derived from them. Cost is
+   * O(N + nx) rather than O(N * nx).
+   */
   private double num_nom2(int att1, int att2) {
-    int i, ii, k;
-    double temp;
+    int i, ii, nv;
+    double temp, v, w;
     Instance inst;
-    int mx =
-        (int) m_trainInstances.meanOrMode(m_trainInstances.attribute(att1));
-    double my = m_trainInstances.meanOrMode(m_trainInstances.attribute(att2));
-    double stdv_num = 0.0;
-    double diff1, diff2;
+    double stdv_num, sumNum, my;
     double r = 0.0, rr;
-    int nx =
-        (!m_missingSeparate) ? m_trainInstances.attribute(att1).numValues()
-            : m_trainInstances.attribute(att1).numValues() + 1;
+    int nx, mx;
 
-    double[] prior_nom = new double[nx];
-    double[] stdvs_nom = new double[nx];
-    double[] covs = new double[nx];
+    nv = m_trainInstances.attribute(att1).numValues();
 
-    for (i = 0; i < nx; i++) {
-      stdvs_nom[i] = covs[i] = prior_nom[i] = 0.0;
-    }
+    // per value statistics, the extra slot collects rows where att1 is missing
+    double[] prior_nom = new double[nv + 1];
+    double[] presentNum = new double[nv + 1];
+    double[] sumsNum = new double[nv + 1];
+    int[] modeCounts = new int[nv];
+    double sumW = 0.0, sumWV = 0.0, shift = 0.0, sumSq = 0.0;
+    double numPresent = 0.0;
+    boolean shifted = false;
 
-    // calculate frequencies (and means) of the values of the nominal
-    // attribute
     for (i = 0; i < m_numInstances; i++) {
       inst = m_trainInstances.instance(i);
+      w = inst.weight();
 
       if (inst.isMissing(att1)) {
-        if (!m_missingSeparate) {
-          ii = mx;
-        } else {
-          ii = nx - 1;
-        }
+        ii = nv;
       } else {
         ii = (int) inst.value(att1);
+        modeCounts[ii] += w;
       }
-
-      // increment freq for nominal
       prior_nom[ii]++;
+
+      if (!inst.isMissing(att2)) {
+        v = inst.value(att2);
+        // shift by the first value seen to keep the sums of squares stable
+        if (!shifted) {
+          shift = v;
+          shifted = true;
+        }
+        sumW += w;
+        sumWV += w * v;
+        v -= shift;
+        presentNum[ii]++;
+        sumsNum[ii] += v;
+        sumSq += v * v;
+        numPresent++;
+      }
     }
 
-    for (k = 0; k < m_numInstances; k++) {
-      inst = m_trainInstances.instance(k);
-      // std dev of numeric attribute
-      diff2 = (inst.isMissing(att2)) ? 0.0 : (inst.value(att2) - my);
-      stdv_num += (diff2 * diff2);
+    // same mean and mode as Instances.meanOrMode()
+    my = (sumW <= 0) ? 0.0 : sumWV / sumW;
+    mx = Utils.maxIndex(modeCounts);
+    nx = (!m_missingSeparate) ? nv : nv + 1;
 
-      //
-      for (i = 0; i < nx; i++) {
-        if (inst.isMissing(att1)) {
-          if (!m_missingSeparate) {
-            temp = (i == mx) ? 1.0 : 0.0;
-          } else {
-            temp = (i == (nx - 1)) ? 1.0 : 0.0;
-          }
-        } else {
-          temp = (i == inst.value(att1)) ? 1.0 : 0.0;
-        }
+    sumNum = 0.0;
+    for (i = 0; i <= nv; i++) {
+      sumNum += sumsNum[i];
+    }
 
-        diff1 = (temp - (prior_nom[i] / m_numInstances));
-        stdvs_nom[i] += (diff1 * diff1);
-        covs[i] += (diff1 * diff2);
-      }
+    if (!m_missingSeparate) {
+      prior_nom[mx] += prior_nom[nv];
+      presentNum[mx] += presentNum[nv];
+      sumsNum[mx] += sumsNum[nv];
     }
 
+    // centre the sums on the mean of the numeric attribute
+    stdv_num = sumSq - 2.0 * (my - shift) * sumNum
+        + numPresent * (my - shift) * (my - shift);
+    sumNum -= numPresent * (my - shift);
+
     // calculate weighted correlation
     for (i = 0, temp = 0.0; i < nx; i++) {
+      double p = prior_nom[i] / m_numInstances;
+      double stdv_nom = prior_nom[i] * (1.0 - p) * (1.0 - p)
+          + (m_numInstances - prior_nom[i]) * p * p;
+      double cov = (sumsNum[i] - presentNum[i] * (my - shift)) - p * sumNum;
+
       // calculate the weighted variance of the nominal
-      temp +=
-          ((prior_nom[i] / m_numInstances) * (stdvs_nom[i] / m_numInstances));
+      temp += (p * (stdv_nom / m_numInstances));
 
-      if ((stdvs_nom[i] * stdv_num) > 0.0) {
-        // System.out.println("Stdv :"+stdvs_nom[i]);
-        rr = (covs[i] / (Math.sqrt(stdvs_nom[i] * stdv_num)));
+      if ((stdv_nom * stdv_num) > 0.0) {
+        rr = (cov / (Math.sqrt(stdv_nom * stdv_num)));
 
         if (rr < 0.0) {
           rr = -rr;
         }
 
-        r += ((prior_nom[i] / m_numInstances) * rr);
+        r += (p * rr);
       }
       /*
        * if there is zero variance for the numeric att at a specific level of
@@ -1133,7 +3135,7 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
        */
       else {
         if (att1 != m_classIndex && att2 != m_classIndex) {
-          r += ((prior_nom[i] / m_numInstances) * 1.0);
+          r += (p * 1.0);
         }
       }
     }
@@ -1161,132 +3163,93 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
     return r;
   }
 
+  /**
+   * Correlation between two nominal attributes. One pass over the data fills
+   * the joint frequency table, the variances and covariances of the value
+   * indicators follow directly from its marginals, so the cost is
+   * O(N + nx * ny) rather than O(N * nx * ny).
+   */
   private double nom_nom(int att1, int att2) {
-    int i, j, ii, jj, z;
-    double temp1, temp2;
+    int i, j, ii, jj, z, nvx, nvy;
+    double temp1, temp2, w;
     Instance inst;
-    int mx =
-        (int) m_trainInstances.meanOrMode(m_trainInstances.attribute(att1));
-    int my =
-        (int) m_trainInstances.meanOrMode(m_trainInstances.attribute(att2));
-    double diff1, diff2;
     double r = 0.0, rr;
-    int nx =
-        (!m_missingSeparate) ? m_trainInstances.attribute(att1).numValues()
-            : m_trainInstances.attribute(att1).numValues() + 1;
-
-    int ny =
-        (!m_missingSeparate) ? m_trainInstances.attribute(att2).numValues()
-            : m_trainInstances.attribute(att2).numValues() + 1;
-
-    double[][] prior_nom = new double[nx][ny];
-    double[] sumx = new double[nx];
-    double[] sumy = new double[ny];
-    double[] stdvsx = new double[nx];
-    double[] stdvsy = new double[ny];
-    double[][] covs = new double[nx][ny];
 
-    for (i = 0; i < nx; i++) {
-      sumx[i] = stdvsx[i] = 0.0;
-    }
-
-    for (j = 0; j < ny; j++) {
-      sumy[j] = stdvsy[j] = 0.0;
-    }
+    nvx = m_trainInstances.attribute(att1).numValues();
+    nvy = m_trainInstances.attribute(att2).numValues();
 
-    for (i = 0; i < nx; i++) {
-      for (j = 0; j < ny; j++) {
-        covs[i][j] = prior_nom[i][j] = 0.0;
-      }
-    }
+    // joint frequencies, the extra row and column collect missing values
+    double[][] joint = new double[nvx + 1][nvy + 1];
+    int[] modeCountsX = new int[nvx];
+    int[] modeCountsY = new int[nvy];
 
-    // calculate frequencies (and means) of the values of the nominal
-    // attribute
-    for (i = 0; i < m_numInstances; i++) {
-      inst = m_trainInstances.instance(i);
+    for (z = 0; z < m_numInstances; z++) {
+      inst = m_trainInstances.instance(z);
+      w = inst.weight();
 
       if (inst.isMissing(att1)) {
-        if (!m_missingSeparate) {
-          ii = mx;
-        } else {
-          ii = nx - 1;
-        }
+        ii = nvx;
       } else {
         ii = (int) inst.value(att1);
+        modeCountsX[ii] += w;
       }
 
       if (inst.isMissing(att2)) {
-        if (!m_missingSeparate) {
-          jj = my;
-        } else {
-          jj = ny - 1;
-        }
+        jj = nvy;
       } else {
         jj = (int) inst.value(att2);
+        modeCountsY[jj] += w;
       }
 
-      // increment freq for nominal
-      prior_nom[ii][jj]++;
-      sumx[ii]++;
-      sumy[jj]++;
+      joint[ii][jj]++;
     }
 
-    for (z = 0; z < m_numInstances; z++) {
-      inst = m_trainInstances.instance(z);
-
-      for (j = 0; j < ny; j++) {
-        if (inst.isMissing(att2)) {
-          if (!m_missingSeparate) {
-            temp2 = (j == my) ? 1.0 : 0.0;
-          } else {
-            temp2 = (j == (ny - 1)) ? 1.0 : 0.0;
-          }
-        } else {
-          temp2 = (j == inst.value(att2)) ? 1.0 : 0.0;
-        }
+    // same modes as Instances.meanOrMode()
+    int mx = Utils.maxIndex(modeCountsX);
+    int my = Utils.maxIndex(modeCountsY);
+    int nx = (!m_missingSeparate) ? nvx : nvx + 1;
+    int ny = (!m_missingSeparate) ? nvy : nvy + 1;
 
-        diff2 = (temp2 - (sumy[j] / m_numInstances));
-        stdvsy[j] += (diff2 * diff2);
+    if (!m_missingSeparate) {
+      for (j = 0; j <= nvy; j++) {
+        joint[mx][j] += joint[nvx][j];
       }
+      for (i = 0; i < nvx; i++) {
+        joint[i][my] += joint[i][nvy];
+      }
+    }
 
-      //
-      for (i = 0; i < nx; i++) {
-        if (inst.isMissing(att1)) {
-          if (!m_missingSeparate) {
-            temp1 = (i == mx) ? 1.0 : 0.0;
-          } else {
-            temp1 = (i == (nx - 1)) ? 1.0 : 0.0;
-          }
-        } else {
-          temp1 = (i == inst.value(att1)) ? 1.0 : 0.0;
-        }
+    double[][] prior_nom = joint;
+    double[] sumx = new double[nx];
+    double[] sumy = new double[ny];
+    double[] stdvsx = new double[nx];
+    double[] stdvsy = new double[ny];
 
-        diff1 = (temp1 - (sumx[i] / m_numInstances));
-        stdvsx[i] += (diff1 * diff1);
+    for (i = 0; i < nx; i++) {
+      for (j = 0; j < ny; j++) {
+        sumx[i] += prior_nom[i][j];
+        sumy[j] += prior_nom[i][j];
+      }
+    }
 
-        for (j = 0; j < ny; j++) {
-          if (inst.isMissing(att2)) {
-            if (!m_missingSeparate) {
-              temp2 = (j == my) ? 1.0 : 0.0;
-            } else {
-              temp2 = (j == (ny - 1)) ? 1.0 : 0.0;
-            }
-          } else {
-            temp2 = (j == inst.value(att2)) ? 1.0 : 0.0;
-          }
+    for (i = 0; i < nx; i++) {
+      temp1 = sumx[i] / m_numInstances;
+      stdvsx[i] = sumx[i] * (1.0 - temp1) * (1.0 - temp1)
+          + (m_numInstances - sumx[i]) * temp1 * temp1;
+    }
 
-          diff2 = (temp2 - (sumy[j] / m_numInstances));
-          covs[i][j] += (diff1 * diff2);
-        }
-      }
+    for (j = 0; j < ny; j++) {
+      temp2 = sumy[j] / m_numInstances;
+      stdvsy[j] = sumy[j] * (1.0 - temp2) * (1.0 - temp2)
+          + (m_numInstances - sumy[j]) * temp2 * temp2;
     }
 
     // calculate weighted correlation
     for (i = 0; i < nx; i++) {
       for (j = 0; j < ny; j++) {
         if ((stdvsx[i] * stdvsy[j]) > 0.0) {
-          // System.out.println("Stdv :"+stdvs_nom[i]);
-          rr = (covs[i][j] / (Math.sqrt(stdvsx[i] * stdvsy[j])));
+          double cov = prior_nom[i][j] - (sumx[i] * sumy[j]) / m_numInstances;
+          rr = (cov / (Math.sqrt(stdvsx[i] * stdvsy[j])));
 
           if (rr < 0.0) {
             rr = -rr;
@@ -1359,6 +3322,43 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
         result.append("\tIncluding locally predictive attributes\n");
       }
 
+      if (m_lshBands > 0 && !m_isNumeric) {
+        result.append("\tIntercorrelations of MinHash candidate pairs only ("
+            + m_lshBands + " bands of " + m_lshRows + ")\n");
+      } else if (m_sparse) {
+        result.append("\tKeeping intercorrelations above " + m_sparseEpsilon
+            + " and the top " + m_sparseTopK + " per attribute\n");
+      } else if (m_corr_matrix instanceof MappedCorrelationMatrix) {
+        result.append("\tCorrelation matrix stored in "
+            + ((MappedCorrelationMatrix) m_corr_matrix).getFile() + "\n");
+      } else if (m_corr_matrix instanceof CompactCorrelationMatrix) {
+        result.append("\tCorrelation matrix stored in 16 bit fixed point\n");
+      } else if (m_corr_matrix instanceof CachedCorrelationMatrix) {
+        CachedCorrelationMatrix cache = (CachedCorrelationMatrix) m_corr_matrix;
+        result.append("\tCorrelation cache of " + cache.capacity()
+            + " entries: " + cache.getHits() + " hits, " + cache.getMisses()
+            + " misses\n");
+      }
+
+      if (m_keptAttributes != null) {
+        result.append("\tPre-pruned to the " + (m_keptAttributes.length - 1)
+            + " attributes with relative Va rank >= " + m_prePruneThreshold
+            + "\n");
+      }
+
+      if (m_maxCorrError != null) {
+        result.append("\tCorrelations sampled, largest 95% confidence "
+            + "half width computed in this build " + Utils.doubleToString(
+            m_maxCorrError.get(), 4) + "\n");
+      }
+
+      if (m_meritCache != null) {
+        result.append("\tSubset merit cache: " + m_meritCache.getHits()
+            + " hits, " + m_meritCache.getMisses() + " misses ("
+            + Utils.doubleToString(m_meritCache.hitRate() * 100.0, 2)
+            + "%)\n");
+      }
+
       result.append("\tVa Formula : " + m_vaFormula + "\n");
       result.append("Va threshold : " + m_vaThreshold + "\n");
     }
@@ -1366,81 +3366,55 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
     return result.toString();
   }
 
+  /**
+   * Adds locally predictive attributes to best_group: attributes are taken in
+   * decreasing order of correlation with the class (lowest index first among
+   * equals) and added unless an attribute already in the group correlates
+   * with them more strongly than they correlate with the class. The class
+   * correlations are put in a heap once and only members of the group are
+   * checked, so attributes that are never reached cost nothing beyond their
+   * class correlation.
+   */
   private void addLocallyPredictive(BitSet best_group) {
-    int i, j;
-    boolean done = false;
-    boolean ok = true;
-    double temp_best = -1.0;
-    float corr;
-    j = 0;
-    BitSet temp_group = (BitSet) best_group.clone();
-    int larger, smaller;
-
-    while (!done) {
-      temp_best = -1.0;
-
-      // find best not already in group
-      for (i = 0; i < m_numAttribs; i++) {
-        if (i > m_classIndex) {
-          larger = i;
-          smaller = m_classIndex;
-        } else {
-          smaller = i;
-          larger = m_classIndex;
+    final float[] classCorr = new float[m_numAttribs];
+    PriorityQueue<Integer> candidates = new PriorityQueue<Integer>(
+        Math.max(1, m_numAttribs), new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        if (classCorr[a] != classCorr[b]) {
+          return classCorr[a] > classCorr[b] ? -1 : 1;
         }
-        /*
-         * int larger = (i > m_classIndex ? i : m_classIndex); int smaller = (i
-         * > m_classIndex ? m_classIndex : i);
-         */
-        if ((!temp_group.get(i)) && (i != m_classIndex)) {
-          if (m_corr_matrix[larger][smaller] == -999) {
-            corr = correlate(i, m_classIndex);
-            m_corr_matrix[larger][smaller] = corr;
-          }
+        return Integer.compare(a, b);
+      }
+    });
 
-          if (m_corr_matrix[larger][smaller] > temp_best) {
-            temp_best = m_corr_matrix[larger][smaller];
-            j = i;
-          }
+    for (int i = 0; i < m_numAttribs; i++) {
+      if (!best_group.get(i) && i != m_classIndex) {
+        classCorr[i] = correlation(i, m_classIndex);
+        // the scan this replaces never picked these
+        if (classCorr[i] > -1.0) {
+          candidates.add(i);
         }
       }
+    }
 
-      if (temp_best == -1.0) {
-        done = true;
-      } else {
-        ok = true;
-        temp_group.set(j);
-
-        // check the best against correlations with others already
-        // in group
-        for (i = 0; i < m_numAttribs; i++) {
-          if (i > j) {
-            larger = i;
-            smaller = j;
-          } else {
-            larger = j;
-            smaller = i;
-          }
-          /*
-           * int larger = (i > j ? i : j); int smaller = (i > j ? j : i);
-           */
-          if (best_group.get(i)) {
-            if (m_corr_matrix[larger][smaller] == -999) {
-              corr = correlate(i, j);
-              m_corr_matrix[larger][smaller] = corr;
-            }
-
-            if (m_corr_matrix[larger][smaller] > temp_best - m_c_Threshold) {
-              ok = false;
-              break;
-            }
-          }
+    while (!candidates.isEmpty()) {
+      int j = candidates.poll();
+      double temp_best = classCorr[j];
+
+      // check the best against correlations with others already in group
+      boolean ok = true;
+      for (int i = best_group.nextSetBit(0); i >= 0;
+          i = best_group.nextSetBit(i + 1)) {
+        if (correlation(i, j) > temp_best - m_c_Threshold) {
+          ok = false;
+          break;
         }
+      }
 
-        // if ok then add to best_group
-        if (ok) {
-          best_group.set(j);
-        }
+      // if ok then add to best_group
+      if (ok) {
+        best_group.set(j);
       }
     }
   }
@@ -1456,7 +3430,18 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
   @Override
   public int[] postProcess(int[] attributeSet) throws Exception {
     //TODO check when not using locally predictive attributes
-    int[] bestAttrs = postProcessLocal(attributeSet);
+    int[] bestAttrs;
+    if (m_keptIndex != null) {
+      int[] kept = Arrays.stream(attributeSet)
+          .map(i -> m_keptIndex[i])
+          .filter(i -> i >= 0)
+          .toArray();
+      bestAttrs = Arrays.stream(postProcessLocal(kept))
+          .map(i -> m_keptAttributes[i])
+          .toArray();
+    } else {
+      bestAttrs = postProcessLocal(attributeSet);
+    }
 
     double maxVrank = Arrays.stream(bestAttrs)
         .mapToDouble(i -> vaRanks[i])
@@ -1516,6 +3501,10 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
       // save memory
       m_trainInstances = new Instances(m_trainInstances, 0);
     }
+    m_columns = null;
+    m_centred = null;
+    m_sumSquares = null;
+    m_sampleOrder = null;
   }
 
   protected void resetOptions() {
@@ -1525,6 +3514,18 @@ public class VaCfsEval extends ASEvaluation implements SubsetEvaluator,
     m_c_Threshold = 0.0;
     m_vaThreshold = 0.5;
     m_vaFormula = MA_VA_FORMULA.FIRUZ.name();
+    m_prePruneThreshold = 0.0;
+    m_correlationMatrixFile = "";
+    m_compactCorrelationMatrix = false;
+    m_sampleTolerance = 0.0;
+    m_sampleSize = 10000;
+    m_lshBands = 0;
+    m_lshRows = 4;
+    m_correlationCacheSize = 0;
+    m_subsetCacheSize = 0;
+    m_sparse = false;
+    m_sparseTopK = 10;
+    m_sparseEpsilon = 0.05;
   }
 
   /**
@@ -3,20 +3,39 @@ package weka.filters.supervised.instance;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import weka.core.*;
+import weka.core.converters.AbstractFileSaver;
+import weka.core.converters.ArffLoader;
+import weka.core.converters.ArffSaver;
 import weka.filters.Filter;
 import weka.filters.SupervisedFilter;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.IdentityHashMap;
 import java.util.Random;
 import java.util.Vector;
+import java.util.stream.IntStream;
 
 /**
  * <!-- globalinfo-start -->
  * Produces an unbalanced random sample (with replacement)
- * Dataset must have a binary class attribute
- * If the first class ratio is equals to -1 then keep same class distribution
+ * Dataset must have a nominal class attribute
+ * The class distribution of the output is either given as a full target
+ * distribution, or by the ratio of the first class, the other classes
+ * sharing the rest in proportion to their input sizes
+ * If neither is given then keep same class distribution
  * in the newly generated dataset
+ * Given the input class counts the sample is drawn while streaming, without
+ * holding the input in memory; given an absolute output size and the
+ * target distribution, a with-replacement reservoir per class holds only the
+ * output
+ * With weighted output every sampled row is emitted once, weighted by the
+ * number of times it was sampled, instead of being duplicated
+ * With synthetic oversampling (SMOTE) a class that has to grow keeps its
+ * rows and gets new ones interpolated between a row and one of its k
+ * nearest neighbours within the class
  * <p/>
  * <!-- globalinfo-end -->
  * <p>
@@ -39,6 +58,42 @@ import java.util.Vector;
  *  (default -1)
  *  If equals to -1 then keep same class distribution as in the input dataset
  * </pre>
+ *
+ * <pre>
+ * -D &lt;w1,w2,...&gt;
+ *  Target class distribution of the output dataset, one weight per
+ *  class label, normalized to sum to 1 (default empty, use -U)
+ * </pre>
+ *
+ * <pre>
+ * -N &lt;num&gt;
+ *  The size of the output dataset, as a number of instances
+ *  (default -1, use -Z)
+ * </pre>
+ *
+ * <pre>
+ * -C &lt;n1,n2,...&gt;
+ *  Number of input instances of each class label, when known
+ *  the sample is drawn while streaming (default empty)
+ * </pre>
+ *
+ * <pre>
+ * -W
+ *  Emit every sampled row once, weighted by the number of
+ *  times it was sampled, instead of duplicating it
+ * </pre>
+ *
+ * <pre>
+ * -M
+ *  Grow classes with synthetic rows interpolated between
+ *  nearest neighbours (SMOTE) instead of duplicates
+ * </pre>
+ *
+ * <pre>
+ * -K &lt;num&gt;
+ *  Number of nearest neighbours of synthetic oversampling
+ *  (default 5)
+ * </pre>
  * <p>
  * <!-- options-end -->
  *
@@ -66,6 +121,72 @@ public class ImbalanceClassSampler extends Filter implements SupervisedFilter, O
      */
     protected double m_sampleClassRatio = -1;
 
+    /**
+     * Target class distribution of the output, comma separated weights one
+     * per class label, default empty (use m_sampleClassRatio).
+     */
+    protected String m_classDistribution = "";
+
+    /**
+     * The out data size as a number of instances, default -1
+     * (use m_SampleSizeRatio).
+     */
+    protected int m_sampleSize = -1;
+
+    /**
+     * Number of input instances of each class, comma separated, default empty
+     * (unknown). When known the sample is drawn while streaming.
+     */
+    protected String m_classCounts = "";
+
+    /**
+     * Emit every sampled row once, weighted by its multiplicity, instead of
+     * duplicating it, default false.
+     */
+    protected boolean m_weightedOutput = false;
+
+    /**
+     * Grow classes with synthetic rows (SMOTE) instead of duplicates,
+     * default false.
+     */
+    protected boolean m_syntheticOversampling = false;
+
+    /**
+     * Number of nearest neighbours of synthetic oversampling, default 5.
+     */
+    protected int m_nearestNeighbors = 5;
+
+    /**
+     * Streaming state: input instances of each class still to come
+     */
+    protected transient int[] m_remainingInstances;
+
+    /**
+     * Streaming state: instances of each class still to be sampled
+     */
+    protected transient int[] m_remainingSamples;
+
+    /**
+     * Reservoir state: the sampled instances of each class
+     */
+    protected transient Instance[][] m_reservoir;
+
+    /**
+     * Reservoir state: a permutation of the slots of each class reservoir,
+     * used to pick the slots to replace
+     */
+    protected transient int[][] m_reservoirSlots;
+
+    /**
+     * Reservoir state: input instances of each class seen so far
+     */
+    protected transient int[] m_numSeen;
+
+    /**
+     * Random number generator of the streaming modes
+     */
+    protected transient Random m_streamRandom;
+
 
     /**
      * The random number generator seed.
@@ -79,10 +200,22 @@ public class ImbalanceClassSampler extends Filter implements SupervisedFilter, O
      * explorer/experimenter gui
      */
     public String globalInfo() {
-        return "Produces an unbalanced random sample (with replacement)" +
-                "Input dataset must have a binary class attribute" +
-                "If the ratio of the first class is set to -1 then keep same class distribution" +
-                "in the newly generated dataset";
+        return "Produces an unbalanced random sample (with replacement). " +
+                "Input dataset must have a nominal class attribute. " +
+                "The class distribution of the output is either given in full, " +
+                "one weight per class label, or by the ratio of the first class, " +
+                "the other classes sharing the rest in proportion to their input sizes. " +
+                "If neither is given then keep same class distribution " +
+                "in the newly generated dataset. " +
+                "Given the input class counts the sample is drawn while streaming, " +
+                "without holding the input in memory; given an absolute output size " +
+                "and the target distribution, a with-replacement reservoir per class " +
+                "holds only the output. " +
+                "With weighted output every sampled row is emitted once, weighted by " +
+                "the number of times it was sampled, instead of being duplicated. " +
+                "With synthetic oversampling (SMOTE) a class that has to grow keeps its " +
+                "rows and gets new ones interpolated between a row and one of its k " +
+                "nearest neighbours within the class.";
     }
 
     /**
@@ -107,6 +240,36 @@ public class ImbalanceClassSampler extends Filter implements SupervisedFilter, O
                         + "\tthe input dataset (default -1, keep same class distribution)",
                 "U", 1, "-U <num>"));
 
+        result.addElement(new Option(
+                "\tTarget class distribution of the output dataset, one weight per\n"
+                        + "\tclass label, normalized to sum to 1 (default empty, use -U)",
+                "D", 1, "-D <w1,w2,...>"));
+
+        result.addElement(new Option(
+                "\tThe size of the output dataset, as a number of instances\n"
+                        + "\t(default -1, use -Z)",
+                "N", 1, "-N <num>"));
+
+        result.addElement(new Option(
+                "\tNumber of input instances of each class label, when known\n"
+                        + "\tthe sample is drawn while streaming (default empty)",
+                "C", 1, "-C <n1,n2,...>"));
+
+        result.addElement(new Option(
+                "\tEmit every sampled row once, weighted by the number of\n"
+                        + "\ttimes it was sampled, instead of duplicating it",
+                "W", 0, "-W"));
+
+        result.addElement(new Option(
+                "\tGrow classes with synthetic rows interpolated between\n"
+                        + "\tnearest neighbours (SMOTE) instead of duplicates",
+                "M", 0, "-M"));
+
+        result.addElement(new Option(
+                "\tNumber of nearest neighbours of synthetic oversampling\n"
+                        + "\t(default 5)",
+                "K", 1, "-K <num>"));
+
         return result.elements();
     }
 
@@ -134,6 +297,42 @@ public class ImbalanceClassSampler extends Filter implements SupervisedFilter, O
      *  (default -1, keep same distribution)
      * </pre>
      *
+     * <pre>
+     * -D &lt;w1,w2,...&gt;
+     *  Target class distribution of the output dataset, one weight per
+     *  class label, normalized to sum to 1 (default empty, use -U)
+     * </pre>
+     *
+     * <pre>
+     * -N &lt;num&gt;
+     *  The size of the output dataset, as a number of instances
+     *  (default -1, use -Z)
+     * </pre>
+     *
+     * <pre>
+     * -C &lt;n1,n2,...&gt;
+     *  Number of input instances of each class label, when known
+     *  the sample is drawn while streaming (default empty)
+     * </pre>
+     *
+     * <pre>
+     * -W
+     *  Emit every sampled row once, weighted by the number of
+     *  times it was sampled, instead of duplicating it
+     * </pre>
+     *
+     * <pre>
+     * -M
+     *  Grow classes with synthetic rows interpolated between
+     *  nearest neighbours (SMOTE) instead of duplicates
+     * </pre>
+     *
+     * <pre>
+     * -K &lt;num&gt;
+     *  Number of nearest neighbours of synthetic oversampling
+     *  (default 5)
+     * </pre>
+     *
      * <p>
      * <!-- options-end -->
      *
@@ -165,6 +364,28 @@ public class ImbalanceClassSampler extends Filter implements SupervisedFilter, O
             setSampleClassRatio(-1);
         }
 
+        setClassDistribution(Utils.getOption('D', options));
+
+        tmpStr = Utils.getOption('N', options);
+        if (tmpStr.length() != 0) {
+            setSampleSize(Integer.parseInt(tmpStr));
+        } else {
+            setSampleSize(-1);
+        }
+
+        setClassCounts(Utils.getOption('C', options));
+
+        setWeightedOutput(Utils.getFlag('W', options));
+
+        setSyntheticOversampling(Utils.getFlag('M', options));
+
+        tmpStr = Utils.getOption('K', options);
+        if (tmpStr.length() != 0) {
+            setNearestNeighbors(Integer.parseInt(tmpStr));
+        } else {
+            setNearestNeighbors(5);
+        }
+
         if (getInputFormat() != null) {
             setInputFormat(getInputFormat());
         }
@@ -187,6 +408,24 @@ public class ImbalanceClassSampler extends Filter implements SupervisedFilter, O
         result.add("" + getSampleSizeRatio());
         result.add("-U");
         result.add("" + getSampleClassRatio());
+        if (getClassDistribution().length() > 0) {
+            result.add("-D");
+            result.add(getClassDistribution());
+        }
+        result.add("-N");
+        result.add("" + getSampleSize());
+        if (getClassCounts().length() > 0) {
+            result.add("-C");
+            result.add(getClassCounts());
+        }
+        if (getWeightedOutput()) {
+            result.add("-W");
+        }
+        if (getSyntheticOversampling()) {
+            result.add("-M");
+            result.add("-K");
+            result.add("" + getNearestNeighbors());
+        }
         return result.toArray(new String[result.size()]);
     }
 
@@ -274,6 +513,189 @@ public class ImbalanceClassSampler extends Filter implements SupervisedFilter, O
         m_sampleClassRatio = sampleClassRatio;
     }
 
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String classDistributionTipText() {
+        return "The target class distribution of the output dataset, comma separated "
+                + "weights one per class label, normalized to sum to 1. "
+                + "Overrides the first class ratio, leave empty to use it.";
+    }
+
+    /**
+     * Gets the target class distribution.
+     *
+     * @return the comma separated weights, or an empty string
+     */
+    public String getClassDistribution() {
+        return m_classDistribution;
+    }
+
+    /**
+     * Sets the target class distribution, one weight per class label.
+     *
+     * @param classDistribution the comma separated weights, or an empty string
+     *                          to use the first class ratio
+     */
+    public void setClassDistribution(String classDistribution) {
+        m_classDistribution = classDistribution == null ? "" : classDistribution.trim();
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String sampleSizeTipText() {
+        return "The sample size as a number of instances, overrides the sample size "
+                + "ratio when positive.";
+    }
+
+    /**
+     * Gets the sample size as a number of instances.
+     *
+     * @return the sample size, or -1 to use the sample size ratio
+     */
+    public int getSampleSize() {
+        return m_sampleSize;
+    }
+
+    /**
+     * Sets the sample size as a number of instances.
+     *
+     * @param sampleSize the sample size, or -1 to use the sample size ratio
+     */
+    public void setSampleSize(int sampleSize) {
+        m_sampleSize = sampleSize;
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String classCountsTipText() {
+        return "The number of input instances of each class label, comma separated. "
+                + "When given the sample is drawn while the instances stream in, "
+                + "without holding the input in memory.";
+    }
+
+    /**
+     * Gets the number of input instances of each class.
+     *
+     * @return the comma separated counts, or an empty string
+     */
+    public String getClassCounts() {
+        return m_classCounts;
+    }
+
+    /**
+     * Sets the number of input instances of each class.
+     *
+     * @param classCounts the comma separated counts, or an empty string if
+     *                    unknown
+     */
+    public void setClassCounts(String classCounts) {
+        m_classCounts = classCounts == null ? "" : classCounts.trim();
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String weightedOutputTipText() {
+        return "Emit every sampled row once, with its weight multiplied by the number "
+                + "of times it was sampled, instead of duplicating it. Weight aware "
+                + "consumers see the same distribution from at most one copy per row.";
+    }
+
+    /**
+     * Gets whether sampled rows are weighted instead of duplicated.
+     *
+     * @return true if the output is weighted
+     */
+    public boolean getWeightedOutput() {
+        return m_weightedOutput;
+    }
+
+    /**
+     * Sets whether sampled rows are weighted instead of duplicated.
+     *
+     * @param weightedOutput true to weight sampled rows
+     */
+    public void setWeightedOutput(boolean weightedOutput) {
+        m_weightedOutput = weightedOutput;
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String syntheticOversamplingTipText() {
+        return "Grow the classes that have to grow with synthetic rows (SMOTE): every "
+                + "row of the class is kept once and new rows are interpolated between "
+                + "a random row and one of its nearest neighbours within the class. "
+                + "Numeric values missing in the row or in the neighbour are copied "
+                + "from the row. Classes that shrink are sampled as usual, weighted with "
+                + "weightedOutput. Needs the whole input.";
+    }
+
+    /**
+     * Gets whether classes grow with synthetic rows.
+     *
+     * @return true for synthetic oversampling
+     */
+    public boolean getSyntheticOversampling() {
+        return m_syntheticOversampling;
+    }
+
+    /**
+     * Sets whether classes grow with synthetic rows.
+     *
+     * @param syntheticOversampling true for synthetic oversampling
+     */
+    public void setSyntheticOversampling(boolean syntheticOversampling) {
+        m_syntheticOversampling = syntheticOversampling;
+    }
+
+    /**
+     * Returns the tip text for this property.
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String nearestNeighborsTipText() {
+        return "The number of nearest neighbours a synthetic row may be interpolated "
+                + "towards.";
+    }
+
+    /**
+     * Gets the number of nearest neighbours of synthetic oversampling.
+     *
+     * @return the number of neighbours
+     */
+    public int getNearestNeighbors() {
+        return m_nearestNeighbors;
+    }
+
+    /**
+     * Sets the number of nearest neighbours of synthetic oversampling.
+     *
+     * @param nearestNeighbors the number of neighbours
+     */
+    public void setNearestNeighbors(int nearestNeighbors) {
+        m_nearestNeighbors = nearestNeighbors;
+    }
+
     /**
      * Returns the Capabilities of this filter.
      *
@@ -290,7 +712,8 @@ public class ImbalanceClassSampler extends Filter implements SupervisedFilter, O
         result.enable(Capabilities.Capability.MISSING_VALUES);
 
         // class
-        result.enable(Capabilities.Capability.BINARY_CLASS);
+        result.enable(Capabilities.Capability.NOMINAL_CLASS);
+        result.enable(Capabilities.Capability.MISSING_CLASS_VALUES);
         return result;
     }
 
@@ -306,7 +729,9 @@ public class ImbalanceClassSampler extends Filter implements SupervisedFilter, O
     @Override
     public boolean setInputFormat(Instances instanceInfo) throws Exception {
         super.setInputFormat(instanceInfo);
+        targetDistribution(new int[instanceInfo.numClasses()]);
         setOutputFormat(instanceInfo);
+        initStreaming(instanceInfo.numClasses());
         return true;
     }
 
@@ -330,12 +755,185 @@ public class ImbalanceClassSampler extends Filter implements SupervisedFilter, O
         if (isFirstBatchDone()) {
             push(instance);
             return true;
+        } else if (m_remainingSamples != null) {
+            return inputStreaming(instance);
+        } else if (m_reservoir != null) {
+            inputReservoir(instance);
+            return false;
         } else {
             bufferInput(instance);
             return false;
         }
     }
 
+    /**
+     * Prepares the streaming modes: with the class counts known, the number
+     * of samples of each class is fixed up front; with only an absolute
+     * sample size and a target distribution, each class gets a reservoir.
+     *
+     * @param numClasses the number of class labels
+     * @throws IllegalArgumentException if the class counts can't be parsed or
+     *                                  a class to sample from has no instances
+     */
+    protected void initStreaming(int numClasses) {
+        m_remainingInstances = null;
+        m_remainingSamples = null;
+        m_reservoir = null;
+        m_reservoirSlots = null;
+        m_numSeen = null;
+        m_streamRandom = new Random(m_RandomSeed);
+
+        if (m_syntheticOversampling) {
+            // neighbours are searched among all the rows of a class
+            return;
+        }
+        if (m_classCounts.length() > 0) {
+            String[] counts = m_classCounts.split(",");
+            if (counts.length != numClasses) {
+                throw new IllegalArgumentException("Class counts has "
+                        + counts.length + " values, the class has " + numClasses + " labels");
+            }
+            int[] numInstancesPerClass = new int[numClasses];
+            int numInstances = 0;
+            for (int i = 0; i < numClasses; i++) {
+                numInstancesPerClass[i] = Integer.parseInt(counts[i].trim());
+                numInstances += numInstancesPerClass[i];
+            }
+            int[] numInstancesToSample = numInstancesToSample(
+                    targetDistribution(numInstancesPerClass), numOutSamples(numInstances));
+            for (int i = 0; i < numClasses; i++) {
+                if (numInstancesToSample[i] > 0 && numInstancesPerClass[i] == 0) {
+                    throw new IllegalArgumentException(
+                            "No instances of class label " + i + " to sample from");
+                }
+            }
+            m_remainingInstances = numInstancesPerClass;
+            m_remainingSamples = numInstancesToSample;
+        } else if (m_sampleSize > 0) {
+            double[] target;
+            if (m_classDistribution.length() > 0) {
+                target = targetDistribution(new int[numClasses]);
+            } else if (numClasses == 2 && m_sampleClassRatio > 0 && m_sampleClassRatio < 1.0) {
+                target = new double[]{m_sampleClassRatio, 1.0 - m_sampleClassRatio};
+            } else {
+                // the shares depend on the input counts, buffer the input
+                return;
+            }
+            int[] numInstancesToSample = numInstancesToSample(target, m_sampleSize);
+            m_reservoir = new Instance[numClasses][];
+            m_reservoirSlots = new int[numClasses][];
+            m_numSeen = new int[numClasses];
+            for (int i = 0; i < numClasses; i++) {
+                m_reservoir[i] = new Instance[numInstancesToSample[i]];
+                m_reservoirSlots[i] = new int[numInstancesToSample[i]];
+                for (int j = 0; j < numInstancesToSample[i]; j++) {
+                    m_reservoirSlots[i][j] = j;
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams an instance when the class counts are known. Sampling m
+     * instances with replacement from the n instances of a class gives each
+     * instance, in turn, Binomial(m', 1 / n') copies, m' and n' being the
+     * samples and instances of the class left. The copies are pushed right
+     * away, so nothing is buffered.
+     *
+     * @param instance the input instance
+     * @return true if copies were pushed
+     */
+    protected boolean inputStreaming(Instance instance) {
+        if (instance.classIsMissing()) {
+            return false;
+        }
+        int classValue = (int) instance.classValue();
+        if (m_remainingInstances[classValue] <= 0) {
+            logger.warn("More instances of class label {} than the class counts",
+                    instance.classAttribute().value(classValue));
+            return false;
+        }
+        int copies = binomial(m_streamRandom, m_remainingSamples[classValue],
+                1.0 / m_remainingInstances[classValue]);
+        m_remainingInstances[classValue]--;
+        m_remainingSamples[classValue] -= copies;
+        if (m_weightedOutput) {
+            if (copies > 0) {
+                push(weighted(instance, copies), false);
+            }
+        } else {
+            for (int j = 0; j < copies; j++) {
+                push(instance);
+            }
+        }
+        return copies > 0;
+    }
+
+    /**
+     * Adds an instance to the reservoir of its class. Every slot of the
+     * reservoir holds a uniform pick (with replacement) among the instances
+     * seen so far: the t-th instance replaces each slot with probability 1 / t,
+     * that is Binomial(slots, 1 / t) distinct slots picked at random.
+     *
+     * @param instance the input instance
+     */
+    protected void inputReservoir(Instance instance) {
+        if (instance.classIsMissing()) {
+            return;
+        }
+        int classValue = (int) instance.classValue();
+        Instance[] reservoir = m_reservoir[classValue];
+        int[] slots = m_reservoirSlots[classValue];
+        int seen = ++m_numSeen[classValue];
+        int replaced = binomial(m_streamRandom, reservoir.length, 1.0 / seen);
+        if (replaced == 0) {
+            return;
+        }
+        Instance copy = (Instance) instance.copy();
+        for (int j = 0; j < replaced; j++) {
+            // partial Fisher-Yates shuffle of the slots
+            int r = j + m_streamRandom.nextInt(slots.length - j);
+            int slot = slots[r];
+            slots[r] = slots[j];
+            slots[j] = slot;
+            reservoir[slot] = copy;
+        }
+    }
+
+    /**
+     * Draws from Binomial(n, p), skipping from success to success with
+     * geometric waiting times, so the cost is the number of successes (or
+     * failures, when p &gt; 0.5) rather than n.
+     *
+     * @param random the random number generator
+     * @param n      the number of trials
+     * @param p      the probability of success
+     * @return the number of successes
+     */
+    protected static int binomial(Random random, int n, double p) {
+        if (n <= 0 || p <= 0) {
+            return 0;
+        }
+        if (p >= 1) {
+            return n;
+        }
+        if (p > 0.5) {
+            return n - binomial(random, n, 1.0 - p);
+        }
+        double logFailure = Math.log1p(-p);
+        int successes = 0;
+        long trial = 0;
+        while (true) {
+            // 1 - nextDouble() is in ]0, 1]
+            double gap = Math.floor(Math.log(1.0 - random.nextDouble()) / logFailure) + 1;
+            if (gap > n - trial) {
+                return successes;
+            }
+            trial += (long) gap;
+            successes++;
+        }
+    }
+
     /**
      * Signify that this batch of input to the filter is finished. If the filter
      * requires all instances prior to filtering, output() may now be called to
@@ -350,8 +948,21 @@ public class ImbalanceClassSampler extends Filter implements SupervisedFilter, O
             throw new IllegalStateException("No input instance format defined");
         }
         if (!isFirstBatchDone()) {
-            // Do the subsample, and clear the input instances.
-            createSubsample();
+            if (m_remainingSamples != null) {
+                // everything was pushed while streaming
+                for (int i = 0; i < m_remainingSamples.length; i++) {
+                    if (m_remainingSamples[i] > 0) {
+                        logger.warn("Fewer instances of class label {} than the class counts, "
+                                        + "{} samples not drawn",
+                                getInputFormat().classAttribute().value(i), m_remainingSamples[i]);
+                    }
+                }
+            } else if (m_reservoir != null) {
+                pushReservoir();
+            } else {
+                // Do the subsample, and clear the input instances.
+                createSubsample();
+            }
         }
         flushInput();
         m_NewBatch = true;
@@ -359,6 +970,66 @@ public class ImbalanceClassSampler extends Filter implements SupervisedFilter, O
         return (numPendingOutput() != 0);
     }
 
+    /**
+     * Parses the target class distribution. Without one, the first class gets
+     * m_sampleClassRatio (when in ]0, 1[) and the other classes share the
+     * rest in proportion to their sizes, or every class keeps its input share.
+     *
+     * @param numInstancesPerClass the number of input instances of each class
+     * @return the share of each class in the output, summing to 1
+     * @throws IllegalArgumentException if the distribution can't be parsed or
+     *                                  does not have one weight per class
+     */
+    protected double[] targetDistribution(int[] numInstancesPerClass) {
+        int numClasses = numInstancesPerClass.length;
+        double[] target = new double[numClasses];
+
+        if (m_classDistribution.length() > 0) {
+            String[] weights = m_classDistribution.split(",");
+            if (weights.length != numClasses) {
+                throw new IllegalArgumentException("Class distribution has "
+                        + weights.length + " weights, the class has " + numClasses + " labels");
+            }
+            double sum = 0;
+            for (int i = 0; i < numClasses; i++) {
+                target[i] = Double.parseDouble(weights[i].trim());
+                if (target[i] < 0 || Double.isNaN(target[i])) {
+                    throw new IllegalArgumentException("Negative class weight: " + weights[i]);
+                }
+                sum += target[i];
+            }
+            if (sum <= 0) {
+                throw new IllegalArgumentException("Class distribution sums to 0");
+            }
+            for (int i = 0; i < numClasses; i++) {
+                target[i] /= sum;
+            }
+            return target;
+        }
+
+        int numInstances = 0;
+        for (int count : numInstancesPerClass) {
+            numInstances += count;
+        }
+        if (numInstances == 0) {
+            return target;
+        }
+        //default ratio value is same as distribution of original dataset
+        for (int i = 0; i < numClasses; i++) {
+            target[i] = (double) numInstancesPerClass[i] / (double) numInstances;
+        }
+        if (numClasses > 1 && m_sampleClassRatio > 0 && m_sampleClassRatio < 1.0
+                && numInstances > numInstancesPerClass[0]) {
+            double rest = (1.0 - m_sampleClassRatio)
+                    / (numInstances - numInstancesPerClass[0]);
+            target[0] = m_sampleClassRatio;
+            for (int i = 1; i < numClasses; i++) {
+                target[i] = numInstancesPerClass[i] * rest;
+            }
+        }
+        return target;
+    }
+
     /**
      * Creates a subsample of the current set of input instances. The output
      * instances are pushed onto the output queue for collection.
@@ -366,51 +1037,565 @@ public class ImbalanceClassSampler extends Filter implements SupervisedFilter, O
     protected void createSubsample() {
 
         Instances data = getInputFormat();
+        int[] numInstancesPerClass = new int[data.numClasses()];
+        int[][] rowsPerClass = bucketRows(data, numInstancesPerClass);
 
-        // Count num instances in each class
-        int[] numInstancesPerClass = new int[2];
-        for (Instance instance : data) {
-            numInstancesPerClass[(int) instance.classValue()]++;
+        if (m_syntheticOversampling) {
+            Instance[] sample = syntheticSample(data, rowsPerClass, numInstancesPerClass);
+            if (sample != null) {
+                for (Instance instance : sample) {
+                    push(instance);
+                }
+            }
+            return;
         }
 
-        if (Arrays.stream(numInstancesPerClass).anyMatch(i -> i == 0)) {
-            logger.error("Data contains less than 2 class labels");
+        int[] rows = sampleRows(data, rowsPerClass, numInstancesPerClass);
+        if (rows == null) {
             return;
         }
+        if (m_weightedOutput) {
+            int[] multiplicities = multiplicities(rows, data.numInstances());
+            for (int row = 0; row < multiplicities.length; row++) {
+                if (multiplicities[row] > 0) {
+                    push(weighted(data.instance(row), multiplicities[row]), false);
+                }
+            }
+        } else {
+            for (int row : rows) {
+                push(data.instance(row));
+            }
+        }
+    }
 
-        // Collect data per class
-        Instance[][] instancesPerClass = new Instance[2][];
-        instancesPerClass[0] = new Instance[numInstancesPerClass[0]];
-        instancesPerClass[1] = new Instance[numInstancesPerClass[1]];
+    /**
+     * @param rows    sampled row indexes
+     * @param numRows the number of rows sampled from
+     * @return the number of times each row was sampled
+     */
+    protected static int[] multiplicities(int[] rows, int numRows) {
+        int[] multiplicities = new int[numRows];
+        for (int row : rows) {
+            multiplicities[row]++;
+        }
+        return multiplicities;
+    }
 
-        int[] counterPerClass = new int[2];
-        for (Instance instance : data) {
+    /**
+     * @param instance     a sampled instance
+     * @param multiplicity the number of times it was sampled
+     * @return a copy of the instance standing for all its samples
+     */
+    protected static Instance weighted(Instance instance, int multiplicity) {
+        Instance copy = (Instance) instance.copy();
+        copy.setWeight(instance.weight() * multiplicity);
+        return copy;
+    }
+
+    /**
+     * Buckets the row indexes by class in one pass, growing as needed.
+     * Instances with a missing class are left out.
+     *
+     * @param data                 the input instances
+     * @param numInstancesPerClass filled with the number of rows of each class
+     * @return the row indexes of each class, in input order
+     */
+    protected static int[][] bucketRows(Instances data, int[] numInstancesPerClass) {
+        int[][] rowsPerClass = new int[numInstancesPerClass.length][16];
+        for (int row = 0; row < data.numInstances(); row++) {
+            Instance instance = data.instance(row);
+            if (instance.classIsMissing()) {
+                continue;
+            }
             int classValue = (int) instance.classValue();
-            instancesPerClass[classValue][counterPerClass[classValue]++] = instance;
+            if (numInstancesPerClass[classValue] == rowsPerClass[classValue].length) {
+                rowsPerClass[classValue] = Arrays.copyOf(rowsPerClass[classValue],
+                        2 * rowsPerClass[classValue].length);
+            }
+            rowsPerClass[classValue][numInstancesPerClass[classValue]++] = row;
         }
+        return rowsPerClass;
+    }
+
+    /**
+     * Samples rows with replacement, class after class, according to the
+     * current settings.
+     *
+     * @param data                 the input instances
+     * @param rowsPerClass         the row indexes of each class
+     * @param numInstancesPerClass the number of rows of each class
+     * @return the sampled row indexes, or null if a class to sample from has
+     * no rows
+     */
+    protected int[] sampleRows(Instances data, int[][] rowsPerClass, int[] numInstancesPerClass) {
+        int numClasses = numInstancesPerClass.length;
 
         // Determine how much data we want for each class
-        int numOutSamples = (int) Math.round(data.numInstances() * m_SampleSizeRatio);
+        int[] numInstancesToSample = numInstancesToSample(
+                targetDistribution(numInstancesPerClass), numOutSamples(data.numInstances()));
 
-        //default ratio value is same as distribution of original dataset
-        double ratio = (double) numInstancesPerClass[0] / (double) data.numInstances();
-        if (m_sampleClassRatio > 0 && m_sampleClassRatio < 1.0) {
-            ratio = m_sampleClassRatio;
-//            logger.info("new ratio = {}", ratio);
+        int numOutSamples = 0;
+        for (int i = 0; i < numClasses; i++) {
+            if (numInstancesToSample[i] > 0 && numInstancesPerClass[i] == 0) {
+                logger.error("No instances of class label {} to sample from",
+                        data.classAttribute().value(i));
+                return null;
+            }
+            numOutSamples += numInstancesToSample[i];
         }
-        int[] numInstancesToSample = new int[2];
-        numInstancesToSample[0] = (int) (ratio * numOutSamples);
-        numInstancesToSample[1] = numOutSamples - numInstancesToSample[0];
 
         //Now do the sampling
+        int[] sample = new int[numOutSamples];
+        int k = 0;
         Random random = new Random(m_RandomSeed);
-        for (int i = 0; i < data.numClasses(); i++) {
+        for (int i = 0; i < numClasses; i++) {
             int numEligible = numInstancesPerClass[i];
+            int[] rows = rowsPerClass[i];
             for (int j = 0; j < numInstancesToSample[i]; j++) {
                 // Sampling with replacement
-                push(instancesPerClass[i][random.nextInt(numEligible)]);
+                sample[k++] = rows[random.nextInt(numEligible)];
+            }
+        }
+        return sample;
+    }
+
+    /**
+     * Samples with synthetic oversampling. A class sampled below its size is
+     * sampled with replacement as usual. A class sampled above its size keeps
+     * every row once, the rest are synthetic: a random row of the class moved
+     * a random fraction of the way towards one of its k nearest neighbours
+     * within the class. Numeric attributes are interpolated, nominal ones take
+     * the most frequent value among the row and its neighbours. A numeric value
+     * missing in the row or in the neighbour is copied from the row.
+     * <p>
+     * With weighted output the rows sampled from a class are emitted once,
+     * weighted by the number of times they were sampled, and the rows a class
+     * that grows keeps once keep their weight; synthetic rows get the weight
+     * of the row they were interpolated from.
+     * <p>
+     * Neighbours are found with a KD-tree over the numeric attributes scaled to
+     * [0, 1], each nominal mismatch adding 1 to the squared distance; missing
+     * numeric values count as the mean. The neighbour queries run in parallel,
+     * the rows are then drawn sequentially so that the seed fixes the output.
+     *
+     * @param data                 the input instances
+     * @param rowsPerClass         the row indexes of each class
+     * @param numInstancesPerClass the number of rows of each class
+     * @return the sample, or null if a class to sample from has no rows
+     */
+    protected Instance[] syntheticSample(Instances data, int[][] rowsPerClass,
+                                         int[] numInstancesPerClass) {
+        int numClasses = numInstancesPerClass.length;
+        int[] numInstancesToSample = numInstancesToSample(
+                targetDistribution(numInstancesPerClass), numOutSamples(data.numInstances()));
+
+        int numOutSamples = 0;
+        for (int i = 0; i < numClasses; i++) {
+            if (numInstancesToSample[i] > 0 && numInstancesPerClass[i] == 0) {
+                logger.error("No instances of class label {} to sample from",
+                        data.classAttribute().value(i));
+                return null;
+            }
+            numOutSamples += numInstancesToSample[i];
+        }
+
+        // the attributes neighbours are searched on, numeric ones scaled by
+        // their range over all classes
+        int numNumeric = 0;
+        int numNominal = 0;
+        for (int a = 0; a < data.numAttributes(); a++) {
+            if (a == data.classIndex()) {
+                continue;
+            }
+            if (data.attribute(a).isNumeric()) {
+                numNumeric++;
+            } else if (data.attribute(a).isNominal()) {
+                numNominal++;
+            }
+        }
+        int[] numeric = new int[numNumeric];
+        int[] nominal = new int[numNominal];
+        numNumeric = 0;
+        numNominal = 0;
+        for (int a = 0; a < data.numAttributes(); a++) {
+            if (a == data.classIndex()) {
+                continue;
+            }
+            if (data.attribute(a).isNumeric()) {
+                numeric[numNumeric++] = a;
+            } else if (data.attribute(a).isNominal()) {
+                nominal[numNominal++] = a;
+            }
+        }
+        double[] min = new double[numeric.length];
+        double[] scale = new double[numeric.length];
+        double[] mean = new double[numeric.length];
+        for (int d = 0; d < numeric.length; d++) {
+            AttributeStats stats = data.attributeStats(numeric[d]);
+            if (stats.numericStats != null && stats.numericStats.count > 0) {
+                min[d] = stats.numericStats.min;
+                double range = stats.numericStats.max - stats.numericStats.min;
+                scale[d] = range > 0 ? 1.0 / range : 0.0;
+                mean[d] = stats.numericStats.mean;
+            }
+        }
+
+        Instance[] sample = new Instance[numOutSamples];
+        int k = 0;
+        Random random = new Random(m_RandomSeed);
+        for (int i = 0; i < numClasses; i++) {
+            int numEligible = numInstancesPerClass[i];
+            int[] rows = rowsPerClass[i];
+            if (numInstancesToSample[i] <= numEligible) {
+                if (m_weightedOutput) {
+                    int[] multiplicities = new int[numEligible];
+                    for (int j = 0; j < numInstancesToSample[i]; j++) {
+                        multiplicities[random.nextInt(numEligible)]++;
+                    }
+                    for (int j = 0; j < numEligible; j++) {
+                        if (multiplicities[j] > 0) {
+                            sample[k++] = weighted(data.instance(rows[j]), multiplicities[j]);
+                        }
+                    }
+                    continue;
+                }
+                for (int j = 0; j < numInstancesToSample[i]; j++) {
+                    // Sampling with replacement
+                    sample[k++] = data.instance(rows[random.nextInt(numEligible)]);
+                }
+                continue;
+            }
+
+            int first = k;
+            for (int j = 0; j < numEligible; j++) {
+                sample[k++] = m_weightedOutput ? weighted(data.instance(rows[j]), 1)
+                        : data.instance(rows[j]);
+            }
+
+            double[][] points = new double[numEligible][numeric.length];
+            int[][] codes = new int[numEligible][nominal.length];
+            for (int p = 0; p < numEligible; p++) {
+                Instance instance = data.instance(rows[p]);
+                for (int d = 0; d < numeric.length; d++) {
+                    double value = instance.isMissing(numeric[d]) ? mean[d]
+                            : instance.value(numeric[d]);
+                    points[p][d] = (value - min[d]) * scale[d];
+                }
+                for (int d = 0; d < nominal.length; d++) {
+                    codes[p][d] = instance.isMissing(nominal[d]) ? -1
+                            : (int) instance.value(nominal[d]);
+                }
             }
+            final KDTree tree = new KDTree(points, codes);
+            final int[][] neighbours = new int[numEligible][];
+            IntStream.range(0, numEligible).parallel().forEach(
+                    p -> neighbours[p] = tree.nearest(p, m_nearestNeighbors));
+
+            for (int j = numEligible; j < numInstancesToSample[i]; j++) {
+                int base = random.nextInt(numEligible);
+                int[] near = neighbours[base];
+                if (near.length == 0) {
+                    // a single row has no neighbour to move towards
+                    if (m_weightedOutput) {
+                        sample[first + base].setWeight(sample[first + base].weight()
+                                + data.instance(rows[base]).weight());
+                    } else {
+                        sample[k++] = data.instance(rows[base]);
+                    }
+                    continue;
+                }
+                int other = near[random.nextInt(near.length)];
+                double gap = random.nextDouble();
+                sample[k++] = interpolate(data, rows, base, other, near, gap, numeric, nominal);
+            }
+        }
+        return k < sample.length ? Arrays.copyOf(sample, k) : sample;
+    }
+
+    /**
+     * A synthetic row between the base row and one of its neighbours.
+     */
+    private static Instance interpolate(Instances data, int[] rows, int base, int other,
+                                        int[] near, double gap, int[] numeric, int[] nominal) {
+        Instance baseInstance = data.instance(rows[base]);
+        Instance otherInstance = data.instance(rows[other]);
+        double[] values = baseInstance.toDoubleArray();
+        for (int a : numeric) {
+            if (!baseInstance.isMissing(a) && !otherInstance.isMissing(a)) {
+                values[a] += gap * (otherInstance.value(a) - values[a]);
+            }
+        }
+        for (int a : nominal) {
+            // most frequent value among the row and its neighbours, the row's
+            // own value winning ties
+            int[] votes = new int[data.attribute(a).numValues()];
+            int best = baseInstance.isMissing(a) ? -1 : (int) baseInstance.value(a);
+            if (best >= 0) {
+                votes[best]++;
+            }
+            for (int neighbour : near) {
+                Instance instance = data.instance(rows[neighbour]);
+                if (!instance.isMissing(a)) {
+                    int value = (int) instance.value(a);
+                    votes[value]++;
+                    if (best < 0 || votes[value] > votes[best]) {
+                        best = value;
+                    }
+                }
+            }
+            values[a] = best < 0 ? Utils.missingValue() : best;
+        }
+        Instance synthetic = new DenseInstance(baseInstance.weight(), values);
+        synthetic.setDataset(data);
+        return synthetic;
+    }
+
+    /**
+     * Samples data with the current settings without copying any instance:
+     * the sample is returned as a view holding the indexes of the sampled
+     * rows. The rows are those the filter would output for the same seed.
+     * As with sampleReplicates, an absolute sampleSize (-N) or classCounts
+     * (-C) would make the filter sample while streaming, drawing its random
+     * numbers in another order, so these settings are rejected.
+     * L2AttributeEval.buildEvaluator(SampledView) scores a view directly.
+     *
+     * @param data the instances to sample, with a nominal class set
+     * @return the sample, or null if a class to sample from has no instances
+     * @throws IllegalStateException    with synthetic oversampling
+     * @throws IllegalArgumentException if data has no nominal class, or
+     *                                  sampleSize or classCounts is set
+     */
+    public SampledView sampleView(Instances data) {
+        if (m_syntheticOversampling) {
+            throw new IllegalStateException("Synthetic rows have no index in the data");
+        }
+        if (m_sampleSize > 0 || m_classCounts.length() > 0) {
+            throw new IllegalArgumentException(
+                    "A view can't be sampled with sampleSize (-N) or classCounts (-C) set");
+        }
+        if (data.classIndex() < 0 || !data.classAttribute().isNominal()) {
+            throw new IllegalArgumentException("The data needs a nominal class");
+        }
+        int[] numInstancesPerClass = new int[data.numClasses()];
+        int[][] rowsPerClass = bucketRows(data, numInstancesPerClass);
+        int[] rows = sampleRows(data, rowsPerClass, numInstancesPerClass);
+        return rows == null ? null : new SampledView(data, rows);
+    }
+
+    /**
+     * Generates many samples of the same data at once, one for each
+     * (sampleClassRatio, sampleSizeRatio, randomSeed) of the grid, the other
+     * settings being those of this filter. The classes are bucketed once and
+     * the replicates are sampled in parallel, each with its own random number
+     * generator seeded as a separate run would be, so every replicate is the
+     * same as the output of filtering data with that configuration.
+     * <p>
+     * The output size must come from the sampleSizeRatio of the grid: with
+     * an absolute sampleSize (-N) or classCounts (-C) a separate run samples
+     * while streaming, drawing its random numbers in another order, so these
+     * settings are rejected.
+     *
+     * @param data the instances to sample, with a nominal class set
+     * @param grid one {sampleClassRatio, sampleSizeRatio, randomSeed} per
+     *             replicate
+     * @return the replicates, in grid order, null where a class to sample
+     * from has no instances
+     * @throws IllegalArgumentException if sampleSize or classCounts is set
+     * @throws Exception                if the options of this filter can't be
+     *                                  copied, or the data has no nominal class
+     */
+    public Instances[] sampleReplicates(final Instances data, double[][] grid) throws Exception {
+        if (m_sampleSize > 0 || m_classCounts.length() > 0) {
+            throw new IllegalArgumentException(
+                    "Replicates can't be sampled with sampleSize (-N) or classCounts (-C) set");
+        }
+        final int[] numInstancesPerClass = new int[data.numClasses()];
+        final int[][] rowsPerClass = bucketRows(data, numInstancesPerClass);
+
+        final ImbalanceClassSampler[] configs = new ImbalanceClassSampler[grid.length];
+        for (int r = 0; r < grid.length; r++) {
+            configs[r] = new ImbalanceClassSampler();
+            configs[r].setOptions(getOptions());
+            configs[r].setSampleClassRatio(grid[r][0]);
+            configs[r].setSampleSizeRatio(grid[r][1]);
+            configs[r].setRandomSeed((int) grid[r][2]);
+            // gives the output format the relation name of a separate run
+            configs[r].setInputFormat(data);
+        }
+
+        final Instances[] replicates = new Instances[grid.length];
+        IntStream.range(0, grid.length).parallel().forEach(r -> {
+            if (configs[r].getSyntheticOversampling()) {
+                Instance[] sample = configs[r].syntheticSample(data, rowsPerClass,
+                        numInstancesPerClass);
+                if (sample != null) {
+                    Instances replicate = new Instances(configs[r].getOutputFormat(), sample.length);
+                    for (Instance instance : sample) {
+                        replicate.add(instance);
+                    }
+                    replicates[r] = replicate;
+                }
+                return;
+            }
+            int[] rows = configs[r].sampleRows(data, rowsPerClass, numInstancesPerClass);
+            if (rows != null) {
+                Instances replicate = new Instances(configs[r].getOutputFormat(), rows.length);
+                if (configs[r].getWeightedOutput()) {
+                    int[] multiplicities = multiplicities(rows, data.numInstances());
+                    for (int row = 0; row < multiplicities.length; row++) {
+                        if (multiplicities[row] > 0) {
+                            replicate.add(weighted(data.instance(row), multiplicities[row]));
+                        }
+                    }
+                } else {
+                    for (int row : rows) {
+                        replicate.add(data.instance(row));
+                    }
+                }
+                replicate.compactify();
+                replicates[r] = replicate;
+            }
+        });
+        return replicates;
+    }
+
+    /**
+     * Pushes the reservoirs, class after class.
+     */
+    protected void pushReservoir() {
+        for (int i = 0; i < m_reservoir.length; i++) {
+            Instance[] reservoir = m_reservoir[i];
+            if (reservoir.length > 0 && m_numSeen[i] == 0) {
+                logger.error("No instances of class label {} to sample from",
+                        getInputFormat().classAttribute().value(i));
+                return;
+            }
+        }
+        for (Instance[] reservoir : m_reservoir) {
+            if (m_weightedOutput) {
+                // a row taken by several slots is the same copy in each
+                IdentityHashMap<Instance, int[]> multiplicities = new IdentityHashMap<>();
+                for (Instance instance : reservoir) {
+                    multiplicities.computeIfAbsent(instance, k -> new int[1])[0]++;
+                }
+                for (Instance instance : reservoir) {
+                    int[] multiplicity = multiplicities.remove(instance);
+                    if (multiplicity != null) {
+                        push(weighted(instance, multiplicity[0]), false);
+                    }
+                }
+            } else {
+                for (Instance instance : reservoir) {
+                    push(instance);
+                }
+            }
+        }
+        m_reservoir = null;
+        m_reservoirSlots = null;
+    }
+
+    /**
+     * @param numInstances the number of input instances
+     * @return the size of the output
+     */
+    protected int numOutSamples(int numInstances) {
+        if (m_sampleSize > 0) {
+            return m_sampleSize;
+        }
+        return (int) Math.round(numInstances * m_SampleSizeRatio);
+    }
+
+    /**
+     * Samples an ARFF file too large for memory in two passes over the file:
+     * the first counts the instances of each class, the second streams the
+     * instances through the sampler and the sample out to the output file.
+     * The class counts of the sampler are overwritten.
+     *
+     * @param input      the ARFF file to sample
+     * @param output     the ARFF file to write the sample to
+     * @param classIndex the index of the class, -1 for the last attribute
+     * @param sampler    the configured sampler
+     * @return the number of instances written
+     * @throws Exception if the files can't be read or written, or the sampler
+     *                   rejects the data
+     */
+    public static int sampleArff(File input, File output, int classIndex,
+                                 ImbalanceClassSampler sampler) throws Exception {
+        // first pass: count the classes
+        ArffLoader loader = new ArffLoader();
+        loader.setFile(input);
+        Instances structure = loader.getStructure();
+        structure.setClassIndex(classIndex < 0 ? structure.numAttributes() - 1 : classIndex);
+        int[] counts = new int[structure.numClasses()];
+        Instance instance;
+        while ((instance = loader.getNextInstance(structure)) != null) {
+            if (!instance.classIsMissing()) {
+                counts[(int) instance.classValue()]++;
+            }
+        }
+
+        StringBuilder classCounts = new StringBuilder();
+        for (int i = 0; i < counts.length; i++) {
+            classCounts.append(i == 0 ? "" : ",").append(counts[i]);
+        }
+        sampler.setClassCounts(classCounts.toString());
+        sampler.setInputFormat(structure);
+
+        // second pass: stream through the sampler
+        ArffSaver saver = new ArffSaver();
+        saver.setRetrieval(AbstractFileSaver.INCREMENTAL);
+        saver.setInstances(sampler.getOutputFormat());
+        saver.setFile(output);
+        int written = 0;
+        loader = new ArffLoader();
+        loader.setFile(input);
+        loader.getStructure();
+        while ((instance = loader.getNextInstance(structure)) != null) {
+            if (sampler.input(instance)) {
+                written += writeOutput(sampler, saver);
+            }
+        }
+        sampler.batchFinished();
+        written += writeOutput(sampler, saver);
+        saver.writeIncremental(null);
+        return written;
+    }
+
+    private static int writeOutput(ImbalanceClassSampler sampler, ArffSaver saver)
+            throws IOException {
+        int written = 0;
+        Instance out;
+        while ((out = sampler.output()) != null) {
+            saver.writeIncremental(out);
+            written++;
+        }
+        return written;
+    }
+
+    /**
+     * Splits the output size among the classes: every class but the last one
+     * with a positive share gets the floor of its share, that last class gets
+     * what is left.
+     *
+     * @param target        the share of each class in the output
+     * @param numOutSamples the size of the output
+     * @return the number of instances to sample from each class
+     */
+    protected static int[] numInstancesToSample(double[] target, int numOutSamples) {
+        int[] numInstancesToSample = new int[target.length];
+        int last = target.length - 1;
+        while (last > 0 && target[last] <= 0) {
+            last--;
+        }
+        int assigned = 0;
+        for (int i = 0; i < last; i++) {
+            numInstancesToSample[i] = (int) (target[i] * numOutSamples);
+            assigned += numInstancesToSample[i];
+        }
+        if (last >= 0) {
+            numInstancesToSample[last] = Math.max(0, numOutSamples - assigned);
         }
+        return numInstancesToSample;
     }
 
     /**
@@ -429,6 +1614,6 @@ public class ImbalanceClassSampler extends Filter implements SupervisedFilter, O
      * @param argv should contain arguments to the filter: use -h for help
      */
     public static void main(String[] argv) {
-        runFilter(new Resample(), argv);
+        runFilter(new ImbalanceClassSampler(), argv);
     }
 }
@@ -0,0 +1,264 @@
+package weka.filters.supervised.instance;
+
+/**
+ * KD-tree over a fixed set of points, answering k nearest neighbour queries
+ * among the points themselves. The tree splits on numeric coordinates only,
+ * at the median of the widest one; points may also carry nominal codes whose
+ * mismatches add 1 each to the squared distance (Hamming). Since the nominal
+ * part only ever adds to the distance, the numeric distance to a cell
+ * remains a valid bound for pruning. That distance is kept incrementally,
+ * one offset per dimension (Arya and Mount), which prunes far better than
+ * the distance to the last split plane alone.
+ * <p>
+ * Once built the tree is read only, so queries may run in parallel.
+ *
+ * @author Suhel Hammoud (suhel.hammoud@gmail.com)
+ * @version $Revision: 01 $
+ */
+class KDTree {
+
+    /**
+     * Maximum number of points of a leaf.
+     */
+    static final int LEAF_SIZE = 16;
+
+    private final double[][] m_points;
+    private final int[][] m_nominal;
+
+    /**
+     * Point indexes, each node owning a contiguous range.
+     */
+    private final int[] m_index;
+
+    /**
+     * Nodes: range of m_index, split dimension (-1 for a leaf), split value
+     * and children.
+     */
+    private final int[] m_start;
+    private final int[] m_end;
+    private final int[] m_splitDim;
+    private final double[] m_splitValue;
+    private final int[] m_left;
+    private final int[] m_right;
+    private int m_numNodes;
+
+    /**
+     * @param points  numeric coordinates of every point, all of the same length
+     * @param nominal nominal codes of every point, all of the same length
+     *                (possibly 0)
+     */
+    KDTree(double[][] points, int[][] nominal) {
+        m_points = points;
+        m_nominal = nominal;
+        int n = points.length;
+        m_index = new int[n];
+        for (int i = 0; i < n; i++) {
+            m_index[i] = i;
+        }
+        int maxNodes = 2 * Math.max(1, (n + LEAF_SIZE - 1) / LEAF_SIZE) * 2;
+        m_start = new int[maxNodes];
+        m_end = new int[maxNodes];
+        m_splitDim = new int[maxNodes];
+        m_splitValue = new double[maxNodes];
+        m_left = new int[maxNodes];
+        m_right = new int[maxNodes];
+        build(0, n);
+    }
+
+    private int build(int start, int end) {
+        int node = m_numNodes++;
+        m_start[node] = start;
+        m_end[node] = end;
+        m_splitDim[node] = -1;
+
+        int dims = m_points.length == 0 ? 0 : m_points[0].length;
+        if (end - start <= LEAF_SIZE || dims == 0) {
+            return node;
+        }
+
+        // the widest dimension
+        int dim = -1;
+        double widest = 0;
+        for (int d = 0; d < dims; d++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = start; i < end; i++) {
+                double v = m_points[m_index[i]][d];
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            if (max - min > widest) {
+                widest = max - min;
+                dim = d;
+            }
+        }
+        if (dim < 0) {
+            // all points coincide on the numeric coordinates
+            return node;
+        }
+
+        int mid = (start + end) >>> 1;
+        select(start, end - 1, mid, dim);
+        m_splitDim[node] = dim;
+        m_splitValue[node] = m_points[m_index[mid]][dim];
+        m_left[node] = build(start, mid);
+        m_right[node] = build(mid, end);
+        return node;
+    }
+
+    /**
+     * Moves the point of rank k (by coordinate dim) within [lo, hi] to
+     * position k, smaller ones before and larger ones after (quickselect).
+     */
+    private void select(int lo, int hi, int k, int dim) {
+        while (lo < hi) {
+            double pivot = m_points[m_index[(lo + hi) >>> 1]][dim];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (m_points[m_index[i]][dim] < pivot) {
+                    i++;
+                }
+                while (m_points[m_index[j]][dim] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int t = m_index[i];
+                    m_index[i] = m_index[j];
+                    m_index[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Squared distance between two points.
+     */
+    double distance(int a, int b) {
+        double[] pa = m_points[a];
+        double[] pb = m_points[b];
+        double dist = 0;
+        for (int d = 0; d < pa.length; d++) {
+            double diff = pa[d] - pb[d];
+            dist += diff * diff;
+        }
+        int[] na = m_nominal[a];
+        int[] nb = m_nominal[b];
+        for (int d = 0; d < na.length; d++) {
+            if (na[d] != nb[d]) {
+                dist += 1;
+            }
+        }
+        return dist;
+    }
+
+    /**
+     * The k nearest neighbours of a point, the point itself excluded.
+     *
+     * @param query the index of the point
+     * @param k     the number of neighbours
+     * @return the indexes of the neighbours, nearest first, fewer than k if
+     * there are not enough points
+     */
+    int[] nearest(int query, int k) {
+        k = Math.min(k, m_points.length - 1);
+        if (k <= 0) {
+            return new int[0];
+        }
+        // max-heap on the distance, the worst neighbour found at the root
+        double[] heapDist = new double[k];
+        int[] heapIndex = new int[k];
+        double[] offsets = new double[m_points[query].length];
+        int size = search(0, query, k, heapDist, heapIndex, 0, 0.0, offsets);
+
+        // heap sort, nearest first
+        int[] result = new int[size];
+        for (int n = size; n > 0; n--) {
+            result[n - 1] = heapIndex[0];
+            heapDist[0] = heapDist[n - 1];
+            heapIndex[0] = heapIndex[n - 1];
+            siftDown(heapDist, heapIndex, 0, n - 1);
+        }
+        return result;
+    }
+
+    /**
+     * Searches the cell of a node, whose squared numeric distance to the
+     * query is at least cellDist; offsets holds the per dimension distances
+     * making it up.
+     */
+    private int search(int node, int query, int k, double[] heapDist,
+                       int[] heapIndex, int size, double cellDist, double[] offsets) {
+        int dim = m_splitDim[node];
+        if (dim < 0) {
+            for (int i = m_start[node]; i < m_end[node]; i++) {
+                int point = m_index[i];
+                if (point == query) {
+                    continue;
+                }
+                double dist = distance(query, point);
+                if (size < k) {
+                    // sift up
+                    int pos = size++;
+                    while (pos > 0 && heapDist[(pos - 1) / 2] < dist) {
+                        heapDist[pos] = heapDist[(pos - 1) / 2];
+                        heapIndex[pos] = heapIndex[(pos - 1) / 2];
+                        pos = (pos - 1) / 2;
+                    }
+                    heapDist[pos] = dist;
+                    heapIndex[pos] = point;
+                } else if (dist < heapDist[0]) {
+                    heapDist[0] = dist;
+                    heapIndex[0] = point;
+                    siftDown(heapDist, heapIndex, 0, size);
+                }
+            }
+            return size;
+        }
+
+        double diff = m_points[query][dim] - m_splitValue[node];
+        int near = diff < 0 ? m_left[node] : m_right[node];
+        int far = diff < 0 ? m_right[node] : m_left[node];
+        size = search(near, query, k, heapDist, heapIndex, size, cellDist, offsets);
+        double offset = offsets[dim];
+        double farDist = cellDist - offset * offset + diff * diff;
+        if (size < k || farDist < heapDist[0]) {
+            offsets[dim] = diff;
+            size = search(far, query, k, heapDist, heapIndex, size, farDist, offsets);
+            offsets[dim] = offset;
+        }
+        return size;
+    }
+
+    private static void siftDown(double[] heapDist, int[] heapIndex, int pos,
+                                 int size) {
+        double dist = heapDist[pos];
+        int index = heapIndex[pos];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heapDist[child + 1] > heapDist[child]) {
+                child++;
+            }
+            if (heapDist[child] <= dist) {
+                break;
+            }
+            heapDist[pos] = heapDist[child];
+            heapIndex[pos] = heapIndex[child];
+            pos = child;
+        }
+        heapDist[pos] = dist;
+        heapIndex[pos] = index;
+    }
+}
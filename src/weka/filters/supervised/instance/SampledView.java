@@ -0,0 +1,125 @@
+package weka.filters.supervised.instance;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A sample drawn with replacement, kept as the row indexes of the sampled
+ * instances in the original dataset instead of copies of them. Iterating the
+ * view hands out the original Instance objects, a row sampled k times being
+ * handed out k times, so a sample costs one int per sampled row whatever the
+ * oversampling factor.
+ * <p>
+ * The original dataset must not be changed while the view is in use.
+ *
+ * @author Suhel Hammoud (suhel.hammoud@gmail.com)
+ * @version $Revision: 01 $
+ */
+public class SampledView implements Iterable<Instance> {
+
+    /**
+     * The dataset the sample was drawn from.
+     */
+    protected final Instances m_data;
+
+    /**
+     * Indexes in m_data of the sampled rows, in sampling order.
+     */
+    protected final int[] m_rows;
+
+    /**
+     * @param data the dataset the sample was drawn from
+     * @param rows the indexes of the sampled rows
+     */
+    public SampledView(Instances data, int[] rows) {
+        m_data = data;
+        m_rows = rows;
+    }
+
+    /**
+     * @return the dataset the sample was drawn from
+     */
+    public Instances data() {
+        return m_data;
+    }
+
+    /**
+     * @return the number of sampled rows, counting repeats
+     */
+    public int numInstances() {
+        return m_rows.length;
+    }
+
+    /**
+     * @param index the position in the sample
+     * @return the index in the original dataset of the sampled row
+     */
+    public int row(int index) {
+        return m_rows[index];
+    }
+
+    /**
+     * @param index the position in the sample
+     * @return the original instance sampled at that position
+     */
+    public Instance instance(int index) {
+        return m_data.instance(m_rows[index]);
+    }
+
+    /**
+     * @return the indexes of the sampled rows, not a copy
+     */
+    public int[] rows() {
+        return m_rows;
+    }
+
+    /**
+     * Number of times every row of the original dataset was sampled, for
+     * consumers that weight rows instead of visiting repeats.
+     *
+     * @return the multiplicity of each row of the original dataset
+     */
+    public int[] multiplicities() {
+        int[] counts = new int[m_data.numInstances()];
+        for (int row : m_rows) {
+            counts[row]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Copies the sample into a dataset of its own, as the filter outputs it.
+     *
+     * @return the sampled instances
+     */
+    public Instances toInstances() {
+        Instances result = new Instances(m_data, m_rows.length);
+        for (int row : m_rows) {
+            result.add(m_data.instance(row));
+        }
+        return result;
+    }
+
+    @Override
+    public Iterator<Instance> iterator() {
+        return new Iterator<Instance>() {
+            private int m_next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return m_next < m_rows.length;
+            }
+
+            @Override
+            public Instance next() {
+                if (m_next >= m_rows.length) {
+                    throw new NoSuchElementException();
+                }
+                return m_data.instance(m_rows[m_next++]);
+            }
+        };
+    }
+}